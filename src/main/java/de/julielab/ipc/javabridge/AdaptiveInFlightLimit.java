@@ -0,0 +1,67 @@
+package de.julielab.ipc.javabridge;
+
+/**
+ * <p>
+ * An additive increase, multiplicative decrease (AIMD) limit for the number of requests that are sent to the
+ * external program before their responses have been received.
+ * </p>
+ * <p>
+ * The limit is driven by the observed round trip times. The smallest round trip time seen recently serves as the
+ * baseline of an external program that has no requests queued in its input pipe. As long as the round trip times
+ * stay within <tt>tolerance</tt> times the baseline and the current limit is actually used, the limit is increased
+ * by about one per round trip. When a round trip takes longer, requests are piling up in the pipe and the limit
+ * is decreased multiplicatively, as it is when an exchange fails. The baseline is re-determined periodically to follow slow changes of the
+ * external program.
+ * </p>
+ */
+class AdaptiveInFlightLimit {
+    private static final double BACKOFF_RATIO = 0.9;
+    private static final int BASELINE_WINDOW = 1000;
+    private final int maxLimit;
+    private final double tolerance;
+    private double limit = 1;
+    private long baselineRtt = Long.MAX_VALUE;
+    private long windowMinRtt = Long.MAX_VALUE;
+    private int samplesInWindow;
+
+    AdaptiveInFlightLimit(int maxLimit, double tolerance) {
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Updates the limit with a new round trip time sample.
+     *
+     * @param rttNanos The round trip time of a request in nanoseconds.
+     * @param inFlight The number of requests that were in flight when the request was sent.
+     * @return The new limit.
+     */
+    synchronized int onSample(long rttNanos, int inFlight) {
+        baselineRtt = Math.min(baselineRtt, rttNanos);
+        windowMinRtt = Math.min(windowMinRtt, rttNanos);
+        if (++samplesInWindow == BASELINE_WINDOW) {
+            baselineRtt = windowMinRtt;
+            windowMinRtt = Long.MAX_VALUE;
+            samplesInWindow = 0;
+        }
+        if (rttNanos > baselineRtt * tolerance)
+            limit = Math.max(1, limit * BACKOFF_RATIO);
+        else if (2 * inFlight >= limit)
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        return getLimit();
+    }
+
+    /**
+     * Decreases the limit after an exchange has failed.
+     *
+     * @return The new limit.
+     */
+    synchronized int onError() {
+        limit = Math.max(1, limit * BACKOFF_RATIO);
+        return getLimit();
+    }
+
+    synchronized int getLimit() {
+        return (int) limit;
+    }
+}
@@ -22,52 +22,29 @@ public class BinaryReader extends Reader<byte[]> {
     private List<byte[]> messageBuffer;
     private List<Integer> messageBufferSizes;
     private boolean gzipReceived;
+    private SessionInflater sessionInflater;
 
     public BinaryReader(InputStream is, String externalProgramReadySignal, boolean gzipReceived) {
+        this(is, externalProgramReadySignal, gzipReceived, null);
+    }
+
+    /**
+     * @param sessionInflater If not null, decompresses the received messages which form one deflate stream, see
+     *                        {@link Options#setDeflateSessionReceivedData(boolean)}.
+     */
+    public BinaryReader(InputStream is, String externalProgramReadySignal, boolean gzipReceived, SessionInflater sessionInflater) {
         super(is, null, externalProgramReadySignal);
         this.gzipReceived = gzipReceived;
+        this.sessionInflater = sessionInflater;
     }
 
     public void run() {
         setName("BinaryReaderThread");
         log.debug("Starting binary reader thread");
         try {
-            if (externalProgramReadySignal != null) {
-                log.debug("Waiting for the signal that the external program is ready ('{}')", externalProgramReadySignal);
-                String lastLine = "";
-                StringBuilder currentLine = new StringBuilder();
-                byte[] eol = System.getProperty("line.separator").getBytes(StandardCharsets.UTF_8);
-                ByteBuffer buffer = ByteBuffer.allocate(8192);
-                while (!lastLine.equals(externalProgramReadySignal)) {
-                    boolean foundEol = false;
-                    while (!foundEol) {
-                        if (buffer.position() == buffer.limit()) {
-                            currentLine.append(new String(buffer.array(), StandardCharsets.UTF_8));
-                            buffer.clear();
-                        }
-                        buffer.put((byte) is.read());
-                        if (buffer.position() > eol.length) {
-                            foundEol = true;
-                            for (int i = 0; i < eol.length && foundEol; i++)
-                                foundEol &= eol[i] == buffer.get(i + buffer.position() - eol.length);
-                            if (foundEol) {
-                                byte[] bytes = new byte[buffer.position() - eol.length];
-                                int length = buffer.position() - eol.length;
-                                buffer.position(0);
-                                buffer.get(bytes, 0, length);
-                                currentLine.append(new String(bytes, StandardCharsets.UTF_8));
-                                lastLine = currentLine.toString();
-                                currentLine.setLength(0);
-                            }
-                        }
-                    }
-                    buffer.position(0);
-                    if (!lastLine.equals(externalProgramReadySignal))
-                        log.debug("Received non-ready signal line '{}'", lastLine);
-                }
-                log.debug("Received ready signal");
-            }
-
+            if (externalProgramReadySignal != null)
+                awaitReadySignal(is, externalProgramReadySignal);
+            markReady();
 
             Supplier<byte[]> bufferSupplier = () -> new byte[8192];
             byte[] buffer = bufferSupplier.get();
@@ -95,8 +72,10 @@ public class BinaryReader extends Reader<byte[]> {
                         final ByteArrayInputStream bais = new ByteArrayInputStream(currentMessage);
                         final BufferedInputStream bis = new BufferedInputStream(new GZIPInputStream(bais));
                         currentMessage = IOUtils.toByteArray(bis);
+                    } else if (sessionInflater != null) {
+                        currentMessage = sessionInflater.decompress(currentMessage);
                     }
-                    inputDeque.add(currentMessage);
+                    deliver(currentMessage);
                     log.trace("Added message of length {} bytes to the queue", currentMessage.length);
                     time = System.currentTimeMillis() - time;
                     log.trace("Retrieving and assembling last message took {}ms", time);
@@ -108,11 +87,64 @@ public class BinaryReader extends Reader<byte[]> {
                 buffer = bufferSupplier.get();
             }
         } catch (IOException e) {
+            markFailed(e);
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            // The bridge is being stopped while waiting for demand or queue space
+        } finally {
+            if (sessionInflater != null)
+                sessionInflater.end();
+            markTerminated();
         }
         log.debug("BinaryReader thread terminates.");
     }
 
+    /**
+     * Reads lines from the given binary stream until the ready signal of the external program is encountered.
+     *
+     * @param is                         The output stream of the external program.
+     * @param externalProgramReadySignal The ready signal.
+     * @throws IOException If reading fails or the stream ends before the ready signal was read.
+     */
+    static void awaitReadySignal(InputStream is, String externalProgramReadySignal) throws IOException {
+        log.debug("Waiting for the signal that the external program is ready ('{}')", externalProgramReadySignal);
+        String lastLine = "";
+        StringBuilder currentLine = new StringBuilder();
+        byte[] eol = System.getProperty("line.separator").getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        while (!lastLine.equals(externalProgramReadySignal)) {
+            boolean foundEol = false;
+            while (!foundEol) {
+                if (buffer.position() == buffer.limit()) {
+                    currentLine.append(new String(buffer.array(), StandardCharsets.UTF_8));
+                    buffer.clear();
+                }
+                int b = is.read();
+                if (b == -1)
+                    throw new EOFException("The external program closed its output before sending the ready signal '" + externalProgramReadySignal + "'.");
+                buffer.put((byte) b);
+                if (buffer.position() > eol.length) {
+                    foundEol = true;
+                    for (int i = 0; i < eol.length && foundEol; i++)
+                        foundEol &= eol[i] == buffer.get(i + buffer.position() - eol.length);
+                    if (foundEol) {
+                        byte[] bytes = new byte[buffer.position() - eol.length];
+                        int length = buffer.position() - eol.length;
+                        buffer.position(0);
+                        buffer.get(bytes, 0, length);
+                        currentLine.append(new String(bytes, StandardCharsets.UTF_8));
+                        lastLine = currentLine.toString();
+                        currentLine.setLength(0);
+                    }
+                }
+            }
+            buffer.position(0);
+            if (!lastLine.equals(externalProgramReadySignal))
+                log.debug("Received non-ready signal line '{}'", lastLine);
+        }
+        log.debug("Received ready signal");
+    }
+
     private byte[] assembleCurrentMessage(int currentMessageLength) {
         byte[] currentMessage;// Get the data of the current message
         currentMessage = new byte[currentMessageLength];
@@ -0,0 +1,88 @@
+package de.julielab.ipc.javabridge;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * Reads the binary messages of a multiplexed external program and dispatches them to their
+ * {@link LogicalChannel}s. Each message starts with the 4 byte ID of its channel, see
+ * {@link Options#setMultiplexed(boolean)}. Messages for unknown channels are logged and dropped. When the reader
+ * terminates, the termination callback is run so that the requests still waiting for their responses can be failed.
+ */
+public class ChannelReader extends Reader<byte[]> {
+    private final static Logger log = LoggerFactory.getLogger(ChannelReader.class);
+    private final IntFunction<LogicalChannel<?>> channels;
+    private final int generation;
+    private final Consumer<Throwable> onTermination;
+    private final byte[] header = new byte[8];
+
+    /**
+     * @param channels   Returns the open channel for a channel ID or null if no such channel is open.
+     * @param generation    The generation of the external program instance, see {@link LogicalChannel}.
+     * @param onTermination Called with the read failure, or null if the external program closed its output, when
+     *                      this reader terminates.
+     */
+    public ChannelReader(InputStream is, String externalProgramReadySignal, IntFunction<LogicalChannel<?>> channels, int generation, Consumer<Throwable> onTermination) {
+        super(is, null, externalProgramReadySignal);
+        this.channels = channels;
+        this.generation = generation;
+        this.onTermination = onTermination;
+    }
+
+    public void run() {
+        setName("ChannelReaderThread");
+        log.debug("Starting channel reader thread");
+        IOException failure = null;
+        try {
+            if (externalProgramReadySignal != null)
+                BinaryReader.awaitReadySignal(is, externalProgramReadySignal);
+            markReady();
+            while (readFully(header, 0, 4)) {
+                int frameLength = ByteBuffer.wrap(header, 0, 4).getInt();
+                if (frameLength < 4)
+                    throw new IOException("Received a frame of " + frameLength + " bytes that is too short to hold a channel ID.");
+                if (!readFully(header, 4, 4))
+                    throw new EOFException("The external program closed its output in the middle of a message.");
+                int channelId = ByteBuffer.wrap(header, 4, 4).getInt();
+                byte[] message = new byte[frameLength - 4];
+                if (message.length > 0 && !readFully(message, 0, message.length))
+                    throw new EOFException("The external program closed its output in the middle of a message.");
+                LogicalChannel<?> channel = channels.apply(channelId);
+                if (channel != null)
+                    channel.onMessage(generation, message);
+                else
+                    log.warn("Dropping a message of {} bytes for the unknown channel {}.", message.length, channelId);
+                log.trace("Dispatched message of length {} bytes to channel {}", message.length, channelId);
+            }
+        } catch (IOException e) {
+            failure = e;
+            markFailed(e);
+            e.printStackTrace();
+        } finally {
+            markTerminated();
+            onTermination.accept(failure);
+        }
+        log.debug("ChannelReader thread terminates.");
+    }
+
+    private boolean readFully(byte[] b, int offset, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = is.read(b, offset + read, length - read);
+            if (n == -1) {
+                if (read == 0)
+                    return false;
+                throw new EOFException("The external program closed its output in the middle of a message.");
+            }
+            read += n;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,90 @@
+package de.julielab.ipc.javabridge;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>
+ * Writes a single message of unknown length as a sequence of chunks. The message starts with the length
+ * {@link #CHUNKED_MESSAGE}. Each chunk is a 4 byte big endian length followed by the chunk bytes and the message is
+ * terminated by a chunk of length 0. The reference Python module <tt>stdioipc.py</tt> reassembles such messages
+ * transparently.
+ * </p>
+ * <p>
+ * Closing this stream terminates the message and flushes, but does not close, the underlying stream.
+ * </p>
+ */
+class ChunkedOutputStream extends OutputStream {
+    /**
+     * The length header that announces a chunked message.
+     */
+    static final int CHUNKED_MESSAGE = -1;
+    static final int DEFAULT_CHUNK_SIZE = 1 << 16;
+    private final OutputStream os;
+    private final byte[] chunk;
+    private int count;
+    private boolean closed;
+
+    ChunkedOutputStream(OutputStream os) throws IOException {
+        this(os, DEFAULT_CHUNK_SIZE);
+    }
+
+    ChunkedOutputStream(OutputStream os, int chunkSize) throws IOException {
+        this.os = os;
+        this.chunk = new byte[chunkSize];
+        writeInt(CHUNKED_MESSAGE);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == chunk.length)
+            writeChunk();
+        chunk[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len >= chunk.length) {
+            // Large writes go to the pipe directly instead of being copied into the chunk buffer
+            writeChunk();
+            writeInt(len);
+            os.write(b, off, len);
+            return;
+        }
+        if (len > chunk.length - count)
+            writeChunk();
+        System.arraycopy(b, off, chunk, count, len);
+        count += len;
+    }
+
+    private void writeChunk() throws IOException {
+        if (count > 0) {
+            writeInt(count);
+            os.write(chunk, 0, count);
+            count = 0;
+        }
+    }
+
+    private void writeInt(int i) throws IOException {
+        os.write(i >>> 24);
+        os.write(i >>> 16);
+        os.write(i >>> 8);
+        os.write(i);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeChunk();
+        os.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        writeChunk();
+        writeInt(0);
+        os.flush();
+    }
+}
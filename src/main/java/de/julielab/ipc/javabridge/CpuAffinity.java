@@ -0,0 +1,47 @@
+package de.julielab.ipc.javabridge;
+
+/**
+ * Helper methods for {@link Options#setCpuAffinity(String)}. When several bridges run on the same host, giving
+ * each external process its own cores avoids that the processes compete with each other, and with the threads of
+ * the JVM, for the same cores.
+ */
+public final class CpuAffinity {
+    private CpuAffinity() {
+    }
+
+    /**
+     * Divides the available cores evenly among <tt>workerCount</tt> external processes and returns the cores of the
+     * worker with the given index in the <tt>taskset</tt> CPU list format, e.g. <code>4-7</code>. If there are fewer
+     * cores than workers, the workers share cores round robin.
+     *
+     * @param workerIndex The index of the worker, starting at 0.
+     * @param workerCount The number of workers.
+     * @return The CPU list for the worker.
+     */
+    public static String sliceForWorker(int workerIndex, int workerCount) {
+        return sliceForWorker(workerIndex, workerCount, 0, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Divides the cores <tt>firstCpu</tt> to <tt>firstCpu + numCpus - 1</tt> evenly among <tt>workerCount</tt> external
+     * processes and returns the cores of the worker with the given index in the <tt>taskset</tt> CPU list format.
+     * Reserving some cores for the JVM is done by excluding them from this range.
+     *
+     * @param workerIndex The index of the worker, starting at 0.
+     * @param workerCount The number of workers.
+     * @param firstCpu    The first core to assign to workers.
+     * @param numCpus     The number of cores to assign to workers.
+     * @return The CPU list for the worker.
+     */
+    public static String sliceForWorker(int workerIndex, int workerCount, int firstCpu, int numCpus) {
+        if (workerIndex < 0 || workerIndex >= workerCount)
+            throw new IllegalArgumentException("The worker index " + workerIndex + " is not within the number of workers " + workerCount + ".");
+        if (numCpus < 1)
+            throw new IllegalArgumentException("There must be at least one CPU to assign but the number of CPUs is " + numCpus + ".");
+        if (workerCount >= numCpus)
+            return String.valueOf(firstCpu + workerIndex % numCpus);
+        int from = firstCpu + (int) ((long) workerIndex * numCpus / workerCount);
+        int to = firstCpu + (int) ((long) (workerIndex + 1) * numCpus / workerCount) - 1;
+        return from == to ? String.valueOf(from) : from + "-" + to;
+    }
+}
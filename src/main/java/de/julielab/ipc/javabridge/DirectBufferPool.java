@@ -0,0 +1,164 @@
+package de.julielab.ipc.javabridge;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * A pool of reusable direct {@link ByteBuffer}s organized in size classes of powers of two. Binary messages received
+ * into pooled buffers live outside of the Java heap and the buffers are reused for later messages. Thus, even large
+ * messages received at a high rate cause almost no garbage collection work.
+ * </p>
+ * <p>
+ * Buffers are obtained with {@link #acquire(int)} and must be given back with {@link PooledBuffer#release()} once
+ * their content is no longer needed. A {@link PooledBuffer} that becomes unreachable without having been released
+ * is reported as a leak in the log. If the pool has been created with allocation site tracking, the report includes
+ * the stack trace of the acquisition.
+ * </p>
+ * <p>
+ * Requests for buffers larger than the largest size class are served by unpooled direct buffers. The
+ * {@link PooledBufferReader} rejects such messages, though, see {@link #getMaxBufferSize()}.
+ * </p>
+ *
+ * @see Options#setDirectBufferPool(DirectBufferPool)
+ */
+public class DirectBufferPool {
+    private final static Logger log = LoggerFactory.getLogger(DirectBufferPool.class);
+    private static final Cleaner cleaner = Cleaner.create();
+    private final int minSizeClassShift;
+    private final int maxSizeClassShift;
+    private final int maxBuffersPerSizeClass;
+    private final boolean trackAllocationSites;
+    private final List<Queue<ByteBuffer>> sizeClasses;
+    private final AtomicInteger[] sizeClassCounts;
+    private final AtomicLong outstanding = new AtomicLong();
+    private final AtomicLong leaked = new AtomicLong();
+
+    /**
+     * Creates a pool for buffers from 4KB to 64MB, keeping at most 16 free buffers per size class and without
+     * allocation site tracking.
+     */
+    public DirectBufferPool() {
+        this(1 << 12, 1 << 26, 16, false);
+    }
+
+    /**
+     * @param minSize                The smallest buffer size, rounded up to a power of two.
+     * @param maxSize                The largest pooled buffer size, rounded up to a power of two.
+     * @param maxBuffersPerSizeClass The maximum number of free buffers kept per size class.
+     * @param trackAllocationSites   Whether to record the stack trace of each acquisition for leak reports. This is
+     *                               expensive and meant for debugging.
+     */
+    public DirectBufferPool(int minSize, int maxSize, int maxBuffersPerSizeClass, boolean trackAllocationSites) {
+        this.minSizeClassShift = shift(minSize);
+        this.maxSizeClassShift = shift(maxSize);
+        this.maxBuffersPerSizeClass = maxBuffersPerSizeClass;
+        this.trackAllocationSites = trackAllocationSites;
+        int numSizeClasses = maxSizeClassShift - minSizeClassShift + 1;
+        this.sizeClasses = new ArrayList<>(numSizeClasses);
+        this.sizeClassCounts = new AtomicInteger[numSizeClasses];
+        for (int i = 0; i < numSizeClasses; i++) {
+            sizeClasses.add(new ConcurrentLinkedQueue<>());
+            sizeClassCounts[i] = new AtomicInteger();
+        }
+    }
+
+    private static int shift(int size) {
+        return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    /**
+     * Returns a buffer with a capacity of at least <tt>size</tt> bytes. The position of the buffer is 0, its limit
+     * is <tt>size</tt>.
+     *
+     * @param size The number of bytes required.
+     * @return A pooled buffer that must be released after use.
+     */
+    public PooledBuffer acquire(int size) {
+        int sizeClass = Math.max(shift(size), minSizeClassShift) - minSizeClassShift;
+        ByteBuffer buffer = null;
+        if (sizeClass < sizeClasses.size()) {
+            buffer = sizeClasses.get(sizeClass).poll();
+            if (buffer != null)
+                sizeClassCounts[sizeClass].decrementAndGet();
+            else
+                buffer = ByteBuffer.allocateDirect(1 << (sizeClass + minSizeClassShift));
+        } else {
+            buffer = ByteBuffer.allocateDirect(size);
+        }
+        buffer.clear().limit(size);
+        outstanding.incrementAndGet();
+        return new PooledBuffer(this, buffer, sizeClass, trackAllocationSites ? new Throwable("Acquisition site of the leaked buffer") : null);
+    }
+
+    void release(ByteBuffer buffer, int sizeClass) {
+        outstanding.decrementAndGet();
+        if (sizeClass < sizeClasses.size() && sizeClassCounts[sizeClass].incrementAndGet() <= maxBuffersPerSizeClass)
+            sizeClasses.get(sizeClass).add(buffer);
+        else if (sizeClass < sizeClasses.size())
+            sizeClassCounts[sizeClass].decrementAndGet();
+    }
+
+    Cleaner.Cleanable registerLeakDetection(PooledBuffer pooledBuffer, LeakDetector detector) {
+        return cleaner.register(pooledBuffer, detector);
+    }
+
+    /**
+     * @return The capacity of the buffers in the largest size class. The {@link PooledBufferReader} rejects messages
+     * that are longer.
+     */
+    public int getMaxBufferSize() {
+        return 1 << maxSizeClassShift;
+    }
+
+    /**
+     * @return The number of buffers that have been acquired but not yet released.
+     */
+    public long getOutstandingCount() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return The number of buffers that have been garbage collected without being released.
+     */
+    public long getLeakCount() {
+        return leaked.get();
+    }
+
+    /**
+     * The cleaning action run when a {@link PooledBuffer} has become unreachable. It must not reference the pooled
+     * buffer itself. Leaked buffers are not returned to the pool because the user might still reference the
+     * underlying {@link ByteBuffer}.
+     */
+    static class LeakDetector implements Runnable {
+        private final DirectBufferPool pool;
+        private final Throwable allocationSite;
+        volatile boolean released;
+
+        LeakDetector(DirectBufferPool pool, Throwable allocationSite) {
+            this.pool = pool;
+            this.allocationSite = allocationSite;
+        }
+
+        @Override
+        public void run() {
+            if (released)
+                return;
+            pool.leaked.incrementAndGet();
+            pool.outstanding.decrementAndGet();
+            if (allocationSite != null)
+                log.warn("A pooled direct buffer has been garbage collected without being released.", allocationSite);
+            else
+                log.warn("A pooled direct buffer has been garbage collected without being released. Create the DirectBufferPool with allocation site tracking to find out where it was acquired.");
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package de.julielab.ipc.javabridge;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.event.Level;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+class ErrorStreamConsumer extends Thread {
+    private final static Logger log = LoggerFactory.getLogger(ErrorStreamConsumer.class);
+    /**
+     * How long closing waits for the remaining lines to be read and logged.
+     */
+    private static final long CLOSE_TIMEOUT_MILLIS = 1000;
+    private static final long RATE_WINDOW_MILLIS = 1000;
+    /**
+     * Queued by {@link #close()} after the last line. Can't be confused with a line of the external program.
+     */
+    private static final Object END_OF_LINES = new Object();
+    private InputStream is;
+    private String terminationSignal;
+    private Thread bridgeThread;
+    private Function<String, Level> levelMapper;
+    private boolean discard;
+    private int maxLinesPerSecond;
+    private int recentLinesCapacity;
+    private final Deque<String> recentLines;
+    private final BlockingQueue<Object> logQueue;
+    private final Thread logThread;
+    private long currentWindowStart;
+    private int linesInCurrentWindow;
+    private int suppressedInCurrentWindow;
+    private long suppressedLines;
+    private volatile boolean closing;
+
+    ErrorStreamConsumer(InputStream is, String terminationSignal, Thread bridgeThread, Function<String, Level> levelMapper, boolean discard, int maxLinesPerSecond, int recentLinesCapacity, int logQueueCapacity) {
+        this.is = is;
+        this.terminationSignal = terminationSignal;
+        this.bridgeThread = bridgeThread;
+        this.levelMapper = levelMapper != null ? levelMapper : line -> Level.ERROR;
+        this.discard = discard;
+        this.maxLinesPerSecond = maxLinesPerSecond;
+        this.recentLinesCapacity = recentLinesCapacity;
+        this.recentLines = new ArrayDeque<>(Math.max(recentLinesCapacity, 1));
+        this.logQueue = new ArrayBlockingQueue<>(Math.max(logQueueCapacity, 1));
+        this.logThread = new Thread(this::logLines, "ErrorStreamLoggerThread");
+        this.logThread.setDaemon(true);
+    }
+
+    /**
+     * Reads and logs the lines still pending, e.g. the stack trace of a crashing external program, for at most
+     * {@link #CLOSE_TIMEOUT_MILLIS} each, and stops the threads. Should be called after the external program has
+     * terminated so that the error stream is at its end.
+     */
+    public void close() throws IOException {
+        try {
+            join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        is.close();
+        closing = true;
+        // If the queue is full, the logging thread is busy and ends when it finds the queue empty
+        logQueue.offer(END_OF_LINES);
+        try {
+            logThread.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logThread.interrupt();
+        logSuppressedLines(true);
+    }
+
+    /**
+     * @return A copy of the most recent lines the external program wrote to its error stream, oldest first.
+     */
+    public List<String> getRecentLines() {
+        synchronized (recentLines) {
+            return new ArrayList<>(recentLines);
+        }
+    }
+
+    /**
+     * @return The number of error stream lines that have not been logged due to rate limiting or a full log queue.
+     */
+    public synchronized long getSuppressedLines() {
+        return suppressedLines;
+    }
+
+    public void run() {
+        if (!discard)
+            logThread.start();
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(is))) {
+            String line;
+            boolean stop = false;
+            while (!stop && (line = br.readLine()) != null) {
+                remember(line);
+                if (!discard)
+                    enqueueForLogging(line);
+                if (terminationSignal != null && line.contains(terminationSignal)) {
+                    stop = true;
+                    log.error("The external program did output the termination signal '" + terminationSignal + "' in its error output stream. Check the error log for more information.");
+                    bridgeThread.interrupt();
+                }
+            }
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+        log.debug("Error stream thread terminates." );
+    }
+
+    private void remember(String line) {
+        if (recentLinesCapacity <= 0)
+            return;
+        synchronized (recentLines) {
+            if (recentLines.size() == recentLinesCapacity)
+                recentLines.pollFirst();
+            recentLines.addLast(line);
+        }
+    }
+
+    /**
+     * Hands the line over to the logging thread unless the rate limit for the current second is exhausted or the
+     * logging thread cannot keep up. This method never blocks so that the error stream pipe is always drained and
+     * the external program can't stall on a full STDERR buffer.
+     */
+    private synchronized void enqueueForLogging(String line) {
+        long now = System.currentTimeMillis();
+        if (now - currentWindowStart >= RATE_WINDOW_MILLIS) {
+            logSuppressedLines(true);
+            currentWindowStart = now;
+            linesInCurrentWindow = 0;
+        }
+        ++linesInCurrentWindow;
+        if ((maxLinesPerSecond > 0 && linesInCurrentWindow > maxLinesPerSecond) || !logQueue.offer(line)) {
+            ++suppressedInCurrentWindow;
+            ++suppressedLines;
+        }
+    }
+
+    /**
+     * Logs how many lines have been suppressed in the current rate window, if any. The summary is logged directly
+     * with a fixed level and not passed through the level mapper, which is meant for the lines of the external program.
+     *
+     * @param force Whether to log the summary even if the current window has not ended yet.
+     */
+    private synchronized void logSuppressedLines(boolean force) {
+        if (suppressedInCurrentWindow > 0 && (force || System.currentTimeMillis() - currentWindowStart >= RATE_WINDOW_MILLIS)) {
+            log.warn("{} lines of the external program's error stream have not been logged due to rate limiting or a full log queue.", suppressedInCurrentWindow);
+            suppressedInCurrentWindow = 0;
+        }
+    }
+
+    private void logLines() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                // Wake up regularly to report suppressed lines even if the external program has become silent
+                Object entry = closing ? logQueue.poll() : logQueue.poll(RATE_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+                logSuppressedLines(false);
+                if (entry == END_OF_LINES || entry == null && closing)
+                    break;
+                if (entry == null)
+                    continue;
+                String line = (String) entry;
+                Level level = levelMapper.apply(line);
+                if (level == null)
+                    continue;
+                switch (level) {
+                    case ERROR:
+                        log.error(line);
+                        break;
+                    case WARN:
+                        log.warn(line);
+                        break;
+                    case INFO:
+                        log.info(line);
+                        break;
+                    case DEBUG:
+                        log.debug(line);
+                        break;
+                    case TRACE:
+                        log.trace(line);
+                        break;
+                }
+            }
+        } catch (InterruptedException e) {
+            // The bridge has been stopped, nothing more to log.
+        }
+    }
+}
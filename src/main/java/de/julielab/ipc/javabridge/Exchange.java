@@ -0,0 +1,13 @@
+package de.julielab.ipc.javabridge;
+
+import java.util.List;
+
+/**
+ * Sends a single request to the external program and receives the complete response to it.
+ *
+ * @param <O> The class of the received messages.
+ */
+@FunctionalInterface
+interface Exchange<O> {
+    List<O> exchange(byte[] request) throws InterruptedException;
+}
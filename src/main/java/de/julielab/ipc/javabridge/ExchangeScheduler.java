@@ -0,0 +1,151 @@
+package de.julielab.ipc.javabridge;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * Decides which caller may exchange messages with the external program next. Each caller acquires a permit before
+ * sending its request and releases it after its response has been received. While all permits are taken, callers
+ * wait in one queue per {@link Priority}. Free permits are handed to the waiting callers by smooth weighted round
+ * robin across the non-empty queues so that a stream of bulk requests can't starve interactive requests and vice
+ * versa. Within a queue, callers are served first come first served.
+ * </p>
+ */
+class ExchangeScheduler {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Priority[] priorities = Priority.values();
+    private final List<Deque<Waiter>> queues;
+    private final int[] weights;
+    private final int[] credits;
+    private int permits;
+    private int availablePermits;
+
+    ExchangeScheduler(int permits, Map<Priority, Integer> weights) {
+        this.permits = permits;
+        this.availablePermits = permits;
+        this.queues = new ArrayList<>(priorities.length);
+        this.weights = new int[priorities.length];
+        this.credits = new int[priorities.length];
+        for (Priority p : priorities) {
+            queues.add(new ArrayDeque<>());
+            this.weights[p.ordinal()] = Math.max(1, weights.getOrDefault(p, 1));
+        }
+    }
+
+    void acquire(Priority priority) throws InterruptedException {
+        lock.lock();
+        try {
+            if (availablePermits > 0 && noWaiters()) {
+                --availablePermits;
+                return;
+            }
+            Waiter waiter = new Waiter(lock.newCondition());
+            queues.get(priority.ordinal()).add(waiter);
+            try {
+                while (!waiter.granted)
+                    waiter.condition.await();
+            } catch (InterruptedException e) {
+                if (waiter.granted)
+                    release();
+                else
+                    queues.get(priority.ordinal()).remove(waiter);
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void release() {
+        lock.lock();
+        try {
+            ++availablePermits;
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Changes the number of callers that may exchange messages with the external program at the same time. If the
+     * number is reduced below the number of currently active callers, no new callers are admitted until enough
+     * permits have been released.
+     *
+     * @param permits The new number of permits.
+     */
+    void setPermits(int permits) {
+        lock.lock();
+        try {
+            availablePermits += permits - this.permits;
+            this.permits = permits;
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getPermits() {
+        lock.lock();
+        try {
+            return permits;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void dispatch() {
+        while (availablePermits > 0 && !noWaiters()) {
+            int totalWeight = 0;
+            int selected = -1;
+            for (int i = 0; i < queues.size(); i++) {
+                if (queues.get(i).isEmpty())
+                    continue;
+                credits[i] += weights[i];
+                totalWeight += weights[i];
+                if (selected == -1 || credits[i] > credits[selected])
+                    selected = i;
+            }
+            credits[selected] -= totalWeight;
+            Waiter waiter = queues.get(selected).poll();
+            waiter.granted = true;
+            --availablePermits;
+            waiter.condition.signal();
+        }
+    }
+
+    private boolean noWaiters() {
+        for (Deque<Waiter> queue : queues) {
+            if (!queue.isEmpty())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param priority A priority class.
+     * @return The number of callers currently waiting in the queue of <tt>priority</tt>.
+     */
+    int getQueueLength(Priority priority) {
+        lock.lock();
+        try {
+            return queues.get(priority.ordinal()).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static class Waiter {
+        private final Condition condition;
+        private boolean granted;
+
+        private Waiter(Condition condition) {
+            this.condition = condition;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package de.julielab.ipc.javabridge;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * A preloaded instance of the external program that forks new instances on request, see
+ * {@link Options#setForkServer(boolean)}. The fork server is controlled over its standard input and output. Each
+ * request is a framed message with the paths of two named pipes, separated by a line break: the pipe the forked
+ * instance reads its requests from and the pipe it writes its responses to. The fork server answers with a framed
+ * message holding the process ID of the forked instance as a decimal number. The termination signal ends the fork
+ * server. The reference implementation is <tt>fork_server</tt> in the Python module <tt>stdioipc.py</tt>.
+ * </p>
+ * <p>
+ * The forked instances are not children of the Java process. They are tracked by their {@link ProcessHandle} and their
+ * error output goes to the error stream of the fork server.
+ * </p>
+ */
+class ForkServer implements AutoCloseable {
+    private final static Logger log = LoggerFactory.getLogger(ForkServer.class);
+    private static final int PENDING = 0;
+    private static final int OPENED = 1;
+    private static final int ABORTED = 2;
+    private final Process process;
+    private final ErrorStreamConsumer errorStreamConsumer;
+    private final String terminationSignal;
+    private final DataInputStream control;
+    private final DataOutputStream commands;
+
+    /**
+     * Waits for the ready signal of the fork server, if given.
+     *
+     * @param process             The started fork server.
+     * @param errorStreamConsumer The consumer of the error stream of the fork server and all forked instances.
+     * @param readySignal         The ready signal, may be null.
+     * @param terminationSignal   The termination signal, may be null.
+     * @throws IOException If the fork server terminates before sending the ready signal.
+     */
+    ForkServer(Process process, ErrorStreamConsumer errorStreamConsumer, String readySignal, String terminationSignal) throws IOException {
+        this.process = process;
+        this.errorStreamConsumer = errorStreamConsumer;
+        this.terminationSignal = terminationSignal;
+        this.control = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        this.commands = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+        if (readySignal != null)
+            BinaryReader.awaitReadySignal(control, readySignal);
+    }
+
+    /**
+     * Forks a new instance of the external program and connects to its standard input and output.
+     *
+     * @return The forked instance.
+     * @throws IOException If the named pipes cannot be created, the fork server does not answer or the forked
+     *                     instance terminates before opening its pipes.
+     */
+    synchronized ForkedProcess fork() throws IOException {
+        Path directory = Files.createTempDirectory("stdiobridge-fork");
+        Path requests = directory.resolve("requests");
+        Path responses = directory.resolve("responses");
+        try {
+            mkfifo(requests, responses);
+            byte[] command = (requests + "\n" + responses).getBytes(StandardCharsets.UTF_8);
+            commands.writeInt(command.length);
+            commands.write(command);
+            commands.flush();
+            byte[] answer = new byte[control.readInt()];
+            control.readFully(answer);
+            long pid = Long.parseLong(new String(answer, StandardCharsets.UTF_8).trim());
+            Optional<ProcessHandle> handle = ProcessHandle.of(pid);
+            if (!handle.isPresent())
+                throw new IOException("The forked process " + pid + " terminated before it connected to the bridge.");
+            // Opening a named pipe blocks until the other side opens it, too. If the forked process dies before, the
+            // pipes are opened by the watchdog so that this thread is released.
+            AtomicInteger state = new AtomicInteger(PENDING);
+            handle.get().onExit().thenRun(() -> {
+                if (state.compareAndSet(PENDING, ABORTED))
+                    release(requests, responses);
+            });
+            OutputStream os = new FileOutputStream(requests.toFile());
+            InputStream is = new FileInputStream(responses.toFile());
+            if (!state.compareAndSet(PENDING, OPENED)) {
+                os.close();
+                is.close();
+                throw new IOException("The forked process " + pid + " terminated before it connected to the bridge.");
+            }
+            return new ForkedProcess(handle.get(), is, os);
+        } finally {
+            // The open pipes stay valid without their names
+            Files.deleteIfExists(requests);
+            Files.deleteIfExists(responses);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    /**
+     * @return The consumer of the error stream of the fork server and all forked instances.
+     */
+    ErrorStreamConsumer getErrorStreamConsumer() {
+        return errorStreamConsumer;
+    }
+
+    private static void mkfifo(Path... paths) throws IOException {
+        String[] command = new String[paths.length + 1];
+        command[0] = "mkfifo";
+        for (int i = 0; i < paths.length; i++)
+            command[i + 1] = paths[i].toString();
+        try {
+            int exitValue = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start().waitFor();
+            if (exitValue != 0)
+                throw new IOException("Could not create the named pipes for a forked process, mkfifo exited with " + exitValue + ".");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while creating the named pipes for a forked process.");
+        }
+    }
+
+    /**
+     * Opens the counterparts of the pipes the forking thread is waiting for.
+     */
+    private static void release(Path requests, Path responses) {
+        try {
+            new FileInputStream(requests.toFile()).close();
+            new FileOutputStream(responses.toFile()).close();
+        } catch (IOException e) {
+            log.warn("Could not release the pipes of a terminated forked process", e);
+        }
+    }
+
+    /**
+     * Sends the termination signal to the fork server and waits for it to end. Forked instances are not affected.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (terminationSignal != null && process.isAlive()) {
+                byte[] signal = terminationSignal.getBytes(StandardCharsets.UTF_8);
+                commands.writeInt(signal.length);
+                commands.write(signal);
+                commands.flush();
+                process.waitFor();
+            }
+            commands.close();
+            if (process.isAlive()) {
+                process.destroy();
+                process.waitFor();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            process.destroy();
+        }
+        // Closed after the fork server has ended so that its last error output is still logged
+        errorStreamConsumer.close();
+        log.debug("Fork server exited with exit value {}.", process.isAlive() ? "unknown" : process.exitValue());
+    }
+
+    /**
+     * An instance of the external program forked by the fork server together with its connected standard input
+     * and output.
+     */
+    static class ForkedProcess {
+        private final ProcessHandle handle;
+        private final InputStream inputStream;
+        private final OutputStream outputStream;
+
+        private ForkedProcess(ProcessHandle handle, InputStream inputStream, OutputStream outputStream) {
+            this.handle = handle;
+            this.inputStream = inputStream;
+            this.outputStream = outputStream;
+        }
+
+        ProcessHandle getHandle() {
+            return handle;
+        }
+
+        /**
+         * @return The standard output of the forked process.
+         */
+        InputStream getInputStream() {
+            return inputStream;
+        }
+
+        /**
+         * @return The standard input of the forked process.
+         */
+        OutputStream getOutputStream() {
+            return outputStream;
+        }
+    }
+}
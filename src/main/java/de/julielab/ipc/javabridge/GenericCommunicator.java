@@ -0,0 +1,502 @@
+package de.julielab.ipc.javabridge;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+
+class GenericCommunicator<O> {
+    private final static Logger log = LoggerFactory.getLogger(GenericCommunicator.class);
+    /**
+     * Streamed requests up to this size are recorded by the {@link TrafficRecorder}, larger ones don't fit into a
+     * record.
+     */
+    private static final int MAX_RECORDED_STREAM_LENGTH = Integer.MAX_VALUE - 8;
+    private final Reader<O> reader;
+    private final Writer writer;
+    private BlockingQueue<O> inputDeque;
+    private Deque<byte[]> outputDeque = new ArrayDeque<>();
+    private BufferedOutputStream bos;
+    private String multilineResponseDelimiter;
+    private boolean gzipSent;
+    /**
+     * Compresses all requests as one deflate stream. Only used while holding the {@link #writeLock} so that the
+     * requests are compressed in the order in which they are written.
+     */
+    private SessionDeflater sessionDeflater;
+    private volatile TrafficRecorder trafficRecorder;
+    /**
+     * Guards all writes to the external program. In asynchronous mode, it is held by the writer thread while it
+     * drains the queue and by streaming sends that bypass the queue.
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Queue<byte[]> asyncQueue;
+    private final Thread writerThread;
+    private final int flushThresholdBytes;
+    private volatile boolean writerParked;
+    private volatile boolean closing;
+
+    public GenericCommunicator(Reader<O> reader, BufferedOutputStream bos, String multilineResponseDelimiter, boolean gzipSent) {
+        this(reader, bos, multilineResponseDelimiter, gzipSent, false, 0);
+    }
+
+    /**
+     * @param asyncWriter         Whether requests are written by a dedicated writer thread instead of the sending
+     *                            thread.
+     * @param flushThresholdBytes In asynchronous mode, the number of written bytes after which the output is flushed
+     *                            even if more requests are waiting.
+     */
+    public GenericCommunicator(Reader<O> reader, BufferedOutputStream bos, String multilineResponseDelimiter, boolean gzipSent, boolean asyncWriter, int flushThresholdBytes) {
+        this.bos = bos;
+        this.multilineResponseDelimiter = multilineResponseDelimiter;
+        this.gzipSent = gzipSent;
+        this.writer = new Writer();
+        this.reader = reader;
+        this.inputDeque = reader.getInputDeque();
+        this.flushThresholdBytes = flushThresholdBytes;
+        if (asyncWriter) {
+            asyncQueue = new ConcurrentLinkedQueue<>();
+            writerThread = new Thread(this::runWriter, "WriterThread");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        } else {
+            asyncQueue = null;
+            writerThread = null;
+        }
+        this.reader.start();
+    }
+
+    public void close() throws IOException {
+        if (writerThread != null) {
+            closing = true;
+            LockSupport.unpark(writerThread);
+            try {
+                // Give the writer the chance to write the remaining requests, e.g. the termination signal
+                writerThread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writerThread.interrupt();
+            if (!asyncQueue.isEmpty())
+                log.warn("Python-Java bridge was closed before {} requests were written to the external program.", asyncQueue.size());
+        }
+        if (!inputDeque.isEmpty())
+            log.warn("Python-Java bridge was closed before all data was received from the external program:" + inputDeque.stream().map(Object::toString).collect(Collectors.joining(", ")));
+        reader.interrupt();
+        reader.close();
+        bos.close();
+        if (sessionDeflater != null) {
+            writeLock.lock();
+            try {
+                sessionDeflater.end();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        if (!outputDeque.isEmpty())
+            log.warn("Python-Java bridge was closed before all data was sent to the external program: " + outputDeque.stream().map(Object::toString).collect(Collectors.joining(", ")));
+        inputDeque = null;
+        outputDeque = null;
+    }
+
+    /**
+     * @param data The request.
+     * @return The ID under which the request has been recorded by the {@link TrafficRecorder} or
+     * {@link TrafficRecorder#NO_REQUEST} if traffic is not recorded.
+     */
+    public long send(byte[] data) {
+        long requestId = recordRequest(data);
+        if (asyncQueue != null) {
+            asyncQueue.offer(data);
+            if (writerParked)
+                LockSupport.unpark(writerThread);
+            return requestId;
+        }
+        writeLock.lock();
+        try {
+            outputDeque.add(data);
+            writer.run();
+        } finally {
+            writeLock.unlock();
+        }
+        return requestId;
+    }
+
+    private long recordRequest(byte[] data) {
+        TrafficRecorder recorder = trafficRecorder;
+        if (recorder == null)
+            return TrafficRecorder.NO_REQUEST;
+        try {
+            return recorder.recordRequest(data);
+        } catch (IOException e) {
+            log.warn("Could not record the request", e);
+            return TrafficRecorder.NO_REQUEST;
+        }
+    }
+
+    /**
+     * The loop of the asynchronous writer thread. Writes the queued requests of all senders and flushes when the
+     * queue is drained or {@link #flushThresholdBytes} have been written. Thus, requests sent concurrently are
+     * combined into fewer, larger writes to the pipe.
+     */
+    private void runWriter() {
+        log.debug("Starting writer thread");
+        while (true) {
+            writeLock.lock();
+            try {
+                drainAsyncQueue();
+            } catch (IOException e) {
+                log.error("Writing to the external program failed.", e);
+            } finally {
+                writeLock.unlock();
+            }
+            if (closing && asyncQueue.isEmpty())
+                break;
+            writerParked = true;
+            // Check again after announcing to park, otherwise a request offered in between could be missed
+            if (asyncQueue.isEmpty() && !closing)
+                LockSupport.park(this);
+            writerParked = false;
+            if (Thread.interrupted())
+                break;
+        }
+        log.debug("Writer thread terminates.");
+    }
+
+    /**
+     * Writes all queued requests. Must be called while holding the {@link #writeLock}.
+     *
+     * @throws IOException If writing fails.
+     */
+    private void drainAsyncQueue() throws IOException {
+        if (asyncQueue == null)
+            return;
+        byte[] data;
+        long unflushed = 0;
+        while ((data = asyncQueue.poll()) != null) {
+            unflushed += writer.write(data);
+            if (unflushed >= flushThresholdBytes) {
+                bos.flush();
+                unflushed = 0;
+            }
+        }
+        if (unflushed > 0)
+            bos.flush();
+    }
+
+    /**
+     * Records all requests, including streamed ones, and all responses received via the <tt>receive</tt> methods
+     * with the given recorder. Messages delivered to a subscriber are not recorded.
+     *
+     * @param trafficRecorder The recorder or null to stop recording.
+     */
+    public void setTrafficRecorder(TrafficRecorder trafficRecorder) {
+        this.trafficRecorder = trafficRecorder;
+    }
+
+    /**
+     * Compresses all subsequent requests as one deflate stream, see {@link Options#setDeflateSessionSentData(boolean)}.
+     * Must be set before the first request is sent.
+     *
+     * @param sessionDeflater The compressor of the session.
+     */
+    void setSessionDeflater(SessionDeflater sessionDeflater) {
+        this.sessionDeflater = sessionDeflater;
+    }
+
+    private void record(List<O> response, long requestId) {
+        TrafficRecorder recorder = trafficRecorder;
+        if (recorder == null)
+            return;
+        try {
+            if (multilineResponseDelimiter != null) {
+                List<Object> messages = new ArrayList<>(response);
+                messages.add(multilineResponseDelimiter);
+                recorder.recordResponse(messages, requestId);
+            } else {
+                recorder.recordResponse(response, requestId);
+            }
+        } catch (IOException e) {
+            log.warn("Could not record the response", e);
+        }
+    }
+
+    /**
+     * Copies a message from the given stream to the external program without materializing it. If the length is
+     * known, fits into the 4 byte length header and the data is not compressed, the message is sent with the usual
+     * framing. Otherwise it is sent in chunks, see {@link ChunkedOutputStream}, and compressed on the fly if
+     * required.
+     *
+     * @param in     The message data.
+     * @param length The number of bytes to send from <tt>in</tt> or -1 to send everything up to the end of the stream.
+     * @throws IOException If reading the data or writing to the external program fails. The external program cannot
+     *                     recover the message framing after an incomplete message and should be restarted.
+     */
+    public void send(InputStream in, long length) throws IOException {
+        writeLock.lock();
+        try {
+            // Requests sent before must be written first
+            drainAsyncQueue();
+            if (!outputDeque.isEmpty())
+                writer.run();
+            long time = System.currentTimeMillis();
+            ByteArrayOutputStream recording = trafficRecorder != null && length <= MAX_RECORDED_STREAM_LENGTH ? new ByteArrayOutputStream() : null;
+            if (length >= 0 && length <= Integer.MAX_VALUE && !isCompressing()) {
+                writer.buffer.putInt((int) length);
+                bos.write(writer.buffer.array());
+                writer.buffer.clear();
+                recording = copy(in, bos, length, recording);
+                bos.flush();
+            } else {
+                try (OutputStream os = openChunkedMessage()) {
+                    recording = copy(in, os, length, recording);
+                }
+            }
+            time = System.currentTimeMillis() - time;
+            log.trace("Streaming data over pipe took {}ms", time);
+            if (recording != null)
+                recordRequest(recording.toByteArray());
+            else if (trafficRecorder != null)
+                log.warn("A streamed request exceeds {} bytes and has not been recorded.", MAX_RECORDED_STREAM_LENGTH);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sends a region of a file to the external program. The region is transferred with
+     * {@link FileChannel#transferTo(long, long, WritableByteChannel)} so that the file content is never copied into a
+     * message array. Framing and compression are the same as for {@link #send(InputStream, long)}.
+     *
+     * @param channel  The file to send from.
+     * @param position The file position of the first byte to send.
+     * @param length   The number of bytes to send.
+     * @throws IOException If reading the file or writing to the external program fails.
+     */
+    public void send(FileChannel channel, long position, long length) throws IOException {
+        writeLock.lock();
+        try {
+            // Requests sent before must be written first
+            drainAsyncQueue();
+            if (!outputDeque.isEmpty())
+                writer.run();
+            long time = System.currentTimeMillis();
+            if (length <= Integer.MAX_VALUE && !isCompressing()) {
+                writer.buffer.putInt((int) length);
+                bos.write(writer.buffer.array());
+                writer.buffer.clear();
+                transfer(channel, position, length, bos);
+                bos.flush();
+            } else {
+                try (OutputStream os = openChunkedMessage()) {
+                    transfer(channel, position, length, os);
+                }
+            }
+            time = System.currentTimeMillis() - time;
+            log.trace("Transferring file data over pipe took {}ms", time);
+            if (trafficRecorder != null) {
+                if (length <= MAX_RECORDED_STREAM_LENGTH)
+                    recordRequest(read(channel, position, (int) length));
+                else
+                    log.warn("A file region of {} bytes exceeds {} bytes and has not been recorded.", length, MAX_RECORDED_STREAM_LENGTH);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private boolean isCompressing() {
+        return gzipSent || sessionDeflater != null;
+    }
+
+    /**
+     * @return A stream for a single chunked message that compresses the data on the fly if required.
+     */
+    private OutputStream openChunkedMessage() throws IOException {
+        if (sessionDeflater != null)
+            return sessionDeflater.stream(new ChunkedOutputStream(bos));
+        return gzipSent ? new GZIPOutputStream(new ChunkedOutputStream(bos), ChunkedOutputStream.DEFAULT_CHUNK_SIZE) : new ChunkedOutputStream(bos);
+    }
+
+    private void transfer(FileChannel channel, long position, long length, OutputStream os) throws IOException {
+        WritableByteChannel target = Channels.newChannel(os);
+        long transferred = 0;
+        while (transferred < length) {
+            long n = channel.transferTo(position + transferred, length - transferred, target);
+            if (n <= 0 && position + transferred >= channel.size())
+                throw new EOFException("The file ended " + (length - transferred) + " bytes before the announced message length of " + length + " bytes.");
+            transferred += n;
+        }
+    }
+
+    /**
+     * Reads a file region for the traffic recording. The region is read again after it has been transferred
+     * because {@link FileChannel#transferTo(long, long, WritableByteChannel)} does not expose the data.
+     */
+    private static byte[] read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer region = ByteBuffer.allocate(length);
+        while (region.hasRemaining()) {
+            if (channel.read(region, position + region.position()) == -1)
+                throw new EOFException("The file ended " + region.remaining() + " bytes before the end of the recorded region.");
+        }
+        return region.array();
+    }
+
+    /**
+     * @param recording Receives a copy of the data for the traffic recording, may be null.
+     * @return The recording or null if the data exceeded {@link #MAX_RECORDED_STREAM_LENGTH}.
+     */
+    private ByteArrayOutputStream copy(InputStream in, OutputStream os, long length, ByteArrayOutputStream recording) throws IOException {
+        byte[] transferBuffer = new byte[ChunkedOutputStream.DEFAULT_CHUNK_SIZE];
+        long remaining = length >= 0 ? length : Long.MAX_VALUE;
+        int read;
+        while (remaining > 0 && (read = in.read(transferBuffer, 0, (int) Math.min(transferBuffer.length, remaining))) != -1) {
+            os.write(transferBuffer, 0, read);
+            if (recording != null && recording.size() > MAX_RECORDED_STREAM_LENGTH - read)
+                recording = null;
+            if (recording != null)
+                recording.write(transferBuffer, 0, read);
+            remaining -= read;
+        }
+        if (length >= 0 && remaining > 0)
+            throw new EOFException("The input stream ended " + remaining + " bytes before the announced message length of " + length + " bytes.");
+        return recording;
+    }
+
+    public void awaitReady() throws InterruptedException, IOException {
+        reader.awaitReady();
+    }
+
+    public void subscribe(Flow.Subscriber<? super O> subscriber) {
+        reader.subscribe(subscriber);
+    }
+
+    public List<O> receive() throws InterruptedException {
+        return receive(TrafficRecorder.NO_REQUEST);
+    }
+
+    /**
+     * @param requestId The ID of the recorded request that the response answers, see {@link #send(byte[])}.
+     * @return The messages of the response.
+     * @throws InterruptedException If waiting for the response is interrupted.
+     */
+    public List<O> receive(long requestId) throws InterruptedException {
+        List<O> receivedData = new ArrayList<>();
+        if (inputDeque == null)
+            throw new IllegalStateException("This communicator has already been closed, further calls to receive() are not permitted.");
+        log.trace("Waiting for something to be read");
+        if (multilineResponseDelimiter == null) {
+            receivedData.add(inputDeque.take());
+        } else {
+            O response;
+            while (!(response = inputDeque.take()).equals(multilineResponseDelimiter)) {
+                receivedData.add(response);
+            }
+        }
+        log.trace("Reading from internal buffer {} messages.", receivedData.size());
+        record(receivedData, requestId);
+        return receivedData;
+    }
+
+    public O receiveOne() throws InterruptedException {
+        return receiveOne(TrafficRecorder.NO_REQUEST);
+    }
+
+    public O receiveOne(long requestId) throws InterruptedException {
+        if (inputDeque == null)
+            throw new IllegalStateException("This communicator has already been closed, further calls to receive() are not permitted.");
+        if (multilineResponseDelimiter != null)
+            throw new IllegalStateException("A single message cannot be received when responses consist of multiple messages terminated by the delimiter '" + multilineResponseDelimiter + "'.");
+        O response = inputDeque.take();
+        if (trafficRecorder != null)
+            record(Collections.singletonList(response), requestId);
+        return response;
+    }
+
+    public int receive(Consumer<? super O> consumer) throws InterruptedException {
+        return receive(consumer, TrafficRecorder.NO_REQUEST);
+    }
+
+    public int receive(Consumer<? super O> consumer, long requestId) throws InterruptedException {
+        if (inputDeque == null)
+            throw new IllegalStateException("This communicator has already been closed, further calls to receive() are not permitted.");
+        if (multilineResponseDelimiter == null) {
+            O response = inputDeque.take();
+            // Record before the consumer might release a pooled buffer
+            if (trafficRecorder != null)
+                record(Collections.singletonList(response), requestId);
+            consumer.accept(response);
+            return 1;
+        }
+        List<O> recorded = trafficRecorder != null ? new ArrayList<>() : null;
+        int count = 0;
+        O response;
+        while (!(response = inputDeque.take()).equals(multilineResponseDelimiter)) {
+            if (recorded != null)
+                recorded.add(response);
+            consumer.accept(response);
+            ++count;
+        }
+        if (recorded != null)
+            record(recorded, requestId);
+        return count;
+    }
+
+    private class Writer {
+        private ByteBuffer buffer = ByteBuffer.allocate(4);
+
+        /**
+         * Writes a single framed message without flushing.
+         *
+         * @param toWrite The message.
+         * @return The number of bytes written.
+         * @throws IOException If writing fails.
+         */
+        private int write(byte[] toWrite) throws IOException {
+            log.trace("Writing: " + toWrite);
+            if (gzipSent) {
+                final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                final BufferedOutputStream bos = new BufferedOutputStream(new GZIPOutputStream(baos));
+                bos.write(toWrite);
+                bos.close();
+                toWrite = baos.toByteArray();
+            } else if (sessionDeflater != null) {
+                toWrite = sessionDeflater.compress(toWrite);
+            }
+            buffer.putInt(toWrite.length);
+            bos.write(buffer.array());
+            bos.write(toWrite);
+            buffer.clear();
+            return toWrite.length + 4;
+        }
+
+        public void run() {
+            try {
+                while (!outputDeque.isEmpty()) {
+                    byte[] toWrite = outputDeque.pop();
+                    long time = System.currentTimeMillis();
+                    write(toWrite);
+                    // Important! When we don't flush, the data so sent will most like just reside in the buffer,
+                    // at least the last part of it, and dont get sent to the external process. The external process
+                    // will then probably block indefinitely, waiting for our request to finish.
+                    bos.flush();
+                    time = System.currentTimeMillis() - time;
+                    log.trace("Sending data over pipe took {}ms", time);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
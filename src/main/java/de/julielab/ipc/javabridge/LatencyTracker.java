@@ -0,0 +1,49 @@
+package de.julielab.ipc.javabridge;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the round trip times of the most recent exchanges with the external program in a ring buffer to compute
+ * latency percentiles.
+ */
+class LatencyTracker {
+    private final long[] samples;
+    private int next;
+    private int count;
+
+    LatencyTracker(int capacity) {
+        this.samples = new long[capacity];
+    }
+
+    synchronized void record(long nanos) {
+        samples[next] = nanos;
+        next = (next + 1) % samples.length;
+        if (count < samples.length)
+            ++count;
+    }
+
+    /**
+     * @param percentile The requested percentile between 0 and 1, e.g. 0.99.
+     * @return The percentile of the recorded round trip times in nanoseconds or -1 if nothing has been recorded.
+     */
+    long getPercentile(double percentile) {
+        long[] sorted;
+        synchronized (this) {
+            if (count == 0)
+                return -1;
+            sorted = Arrays.copyOf(samples, count);
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    synchronized int getSampleCount() {
+        return count;
+    }
+
+    synchronized void reset() {
+        next = 0;
+        count = 0;
+    }
+}
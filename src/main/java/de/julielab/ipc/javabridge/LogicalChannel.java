@@ -0,0 +1,240 @@
+package de.julielab.ipc.javabridge;
+
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Function;
+
+/**
+ * <p>
+ * One of several independent logical endpoints of a multiplexed external program, e.g. one of several models hosted
+ * by the same process. Each channel has its own receive queue, its own response decoder and its own metrics.
+ * Traffic on one channel does not wait for the responses on other channels. Within a channel, the external program
+ * must answer the requests in the order they were sent.
+ * </p>
+ * <p>
+ * Channels are obtained with {@link StdioBridge#channel(int)} and require {@link Options#setMultiplexed(boolean)}.
+ * Either use {@link #sendAndReceive(byte[])} or {@link #send(byte[])} together with {@link #receive()} on a channel,
+ * but do not mix both styles. Messages that are not the response to a <tt>sendAndReceive</tt> request go to the
+ * receive queue.
+ * </p>
+ *
+ * @param <R> The type of the decoded messages.
+ */
+public class LogicalChannel<R> {
+    private final StdioBridge<?> bridge;
+    private final int id;
+    private final Function<byte[], R> decoder;
+    private final BlockingQueue<byte[]> receiveQueue = new LinkedBlockingQueue<>();
+    /**
+     * The requests waiting for their responses in the order they were sent. Each is tagged with the generation of
+     * the external program instance it was sent to, so that responses of a {@link StdioBridge#recycle() replaced}
+     * instance are never assigned to requests sent to its successor.
+     */
+    private final Deque<PendingResponse> pending = new ArrayDeque<>();
+    private final Object sendLock = new Object();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong messagesReceived = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final LatencyTracker latencyTracker = new LatencyTracker(1024);
+
+    LogicalChannel(StdioBridge<?> bridge, int id, Function<byte[], R> decoder) {
+        this.bridge = bridge;
+        this.id = id;
+        this.decoder = decoder;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    Function<byte[], R> getDecoder() {
+        return decoder;
+    }
+
+    /**
+     * Sends a message on this channel. The response, if any, is obtained with {@link #receive()}.
+     *
+     * @param data The message.
+     * @throws InterruptedException If waiting for a recycling of the external program is interrupted.
+     */
+    public void send(byte[] data) throws InterruptedException {
+        Lock lock = bridge.workerReadLock();
+        lock.lockInterruptibly();
+        try {
+            bridge.sendOnChannel(frame(data));
+            bytesSent.addAndGet(data.length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void send(String data) throws InterruptedException {
+        send(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Receives the next message of this channel that is not the response to a {@link #sendAndReceive(byte[])}
+     * request.
+     *
+     * @return The decoded message.
+     * @throws InterruptedException If waiting for the message is interrupted.
+     */
+    public R receive() throws InterruptedException {
+        return decoder.apply(receiveQueue.take());
+    }
+
+    /**
+     * Sends a request on this channel and waits for its response. Concurrent requests on the same channel are
+     * pipelined, requests on other channels are not waited for.
+     *
+     * @param data The request.
+     * @return The decoded response.
+     * @throws InterruptedException                If waiting for the response is interrupted. The response is
+     *                                             discarded when it arrives.
+     * @throws ExternalProgramTerminationException If the external program terminated before it answered the request.
+     */
+    public R sendAndReceive(byte[] data) throws InterruptedException {
+        long start = System.nanoTime();
+        CompletableFuture<byte[]> response = new CompletableFuture<>();
+        byte[] received;
+        Lock lock = bridge.workerReadLock();
+        lock.lockInterruptibly();
+        try {
+            synchronized (sendLock) {
+                int generation = bridge.getWorkerGeneration();
+                synchronized (pending) {
+                    // The termination of the instance might have been handled before the request is registered
+                    if (generation <= bridge.getTerminatedWorkerGeneration())
+                        throw terminated(null);
+                    pending.addLast(new PendingResponse(generation, response));
+                }
+                bridge.sendOnChannel(frame(data));
+            }
+            bytesSent.addAndGet(data.length);
+            received = response.get();
+        } catch (ExecutionException e) {
+            throw terminated(e.getCause());
+        } finally {
+            lock.unlock();
+        }
+        requests.incrementAndGet();
+        latencyTracker.record(System.nanoTime() - start);
+        return decoder.apply(received);
+    }
+
+    public R sendAndReceive(String data) throws InterruptedException {
+        return sendAndReceive(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private byte[] frame(byte[] data) {
+        return ByteBuffer.allocate(4 + data.length).putInt(id).put(data).array();
+    }
+
+    /**
+     * Called by the {@link ChannelReader} for each message received on this channel.
+     *
+     * @param generation The generation of the external program instance that sent the message.
+     * @param message    The message without the channel ID.
+     */
+    void onMessage(int generation, byte[] message) {
+        messagesReceived.incrementAndGet();
+        bytesReceived.addAndGet(message.length);
+        PendingResponse head;
+        synchronized (pending) {
+            // Requests sent to replaced instances will never be answered
+            while ((head = pending.peekFirst()) != null && head.generation < generation)
+                pending.pollFirst();
+            if (head != null && head.generation == generation)
+                pending.pollFirst();
+            else
+                head = null;
+        }
+        if (head != null)
+            head.future.complete(message);
+        else if (generation == bridge.getWorkerGeneration())
+            receiveQueue.add(message);
+    }
+
+    /**
+     * Called when the {@link ChannelReader} of an external program instance terminates. Fails the requests sent to
+     * this or an older instance because they will never be answered.
+     *
+     * @param generation The generation of the terminated external program instance.
+     * @param failure    The read failure or null if the external program closed its output.
+     */
+    void onTerminated(int generation, Throwable failure) {
+        List<PendingResponse> unanswered = new ArrayList<>();
+        synchronized (pending) {
+            for (Iterator<PendingResponse> it = pending.iterator(); it.hasNext(); ) {
+                PendingResponse response = it.next();
+                if (response.generation <= generation) {
+                    unanswered.add(response);
+                    it.remove();
+                }
+            }
+        }
+        for (PendingResponse response : unanswered)
+            response.future.completeExceptionally(failure != null ? failure : new EOFException("The external program closed its output."));
+    }
+
+    private ExternalProgramTerminationException terminated(Throwable cause) {
+        return new ExternalProgramTerminationException("The external program terminated before it answered the request on channel " + id + ".", cause);
+    }
+
+    /**
+     * @return The number of completed {@link #sendAndReceive(byte[])} requests.
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getMessagesReceived() {
+        return messagesReceived.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * @param percentile The requested percentile between 0 and 1, e.g. 0.99.
+     * @return The percentile of the recent round trip times of this channel in milliseconds or -1 if no request has
+     * been completed yet.
+     */
+    public double getLatencyPercentileMillis(double percentile) {
+        long nanos = latencyTracker.getPercentile(percentile);
+        return nanos < 0 ? -1 : nanos / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return "LogicalChannel{id=" + id + ", requests=" + requests + ", bytesSent=" + bytesSent + ", messagesReceived=" + messagesReceived + ", bytesReceived=" + bytesReceived + '}';
+    }
+
+    private static class PendingResponse {
+        private final int generation;
+        private final CompletableFuture<byte[]> future;
+
+        private PendingResponse(int generation, CompletableFuture<byte[]> future) {
+            this.generation = generation;
+            this.future = future;
+        }
+    }
+}
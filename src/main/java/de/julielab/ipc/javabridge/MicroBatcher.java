@@ -0,0 +1,154 @@
+package de.julielab.ipc.javabridge;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * Collects requests of many caller threads and sends them to the external program as a single batch message.
+ * A batch is sent when {@link Options#getBatchMaxSize()} distinct requests have been collected or when the oldest
+ * collected request has waited for {@link Options#getBatchMaxDelayMicros()} microseconds, whichever comes first.
+ * Identical requests within a batch are only sent once.
+ * </p>
+ * <p>
+ * A batch message has the following format, all integers being 4 byte big endian:
+ * <ol>
+ *     <li>The number of requests in the batch</li>
+ *     <li>For each request, its length in bytes followed by the request bytes</li>
+ * </ol>
+ * The external program must answer with a single binary message of the same format that contains the responses
+ * in the order of the requests.
+ * </p>
+ */
+class MicroBatcher extends Thread {
+    private final static Logger log = LoggerFactory.getLogger(MicroBatcher.class);
+    private static final int INT_SIZE = 4;
+    private final int maxSize;
+    private final long maxDelayNanos;
+    private final Exchange<byte[]> exchange;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition requestArrived = lock.newCondition();
+    private Map<ByteBuffer, CompletableFuture<byte[]>> pending = new LinkedHashMap<>();
+    private long oldestPendingRequestTime;
+    private volatile boolean closed;
+
+    MicroBatcher(int maxSize, long maxDelayMicros, Exchange<byte[]> exchange) {
+        this.maxSize = maxSize;
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        this.exchange = exchange;
+        setName("MicroBatcherThread");
+        setDaemon(true);
+    }
+
+    /**
+     * Adds the request to the next batch and waits for its response.
+     *
+     * @param data The request.
+     * @return The response to the request.
+     * @throws InterruptedException If waiting for the response is interrupted.
+     */
+    byte[] sendAndReceive(byte[] data) throws InterruptedException {
+        CompletableFuture<byte[]> future;
+        lock.lock();
+        try {
+            if (closed)
+                throw new IllegalStateException("The micro batcher has already been closed.");
+            if (pending.isEmpty())
+                oldestPendingRequestTime = System.nanoTime();
+            future = pending.computeIfAbsent(ByteBuffer.wrap(data), k -> new CompletableFuture<>());
+            if (pending.size() == 1 || pending.size() >= maxSize)
+                requestArrived.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    public void run() {
+        log.debug("Starting micro batcher thread");
+        try {
+            while (!closed) {
+                send(nextBatch());
+            }
+        } catch (InterruptedException e) {
+            // The batcher has been closed.
+        }
+        lock.lock();
+        try {
+            pending.values().forEach(f -> f.completeExceptionally(new IllegalStateException("The micro batcher has been closed before the request could be sent.")));
+            pending.clear();
+        } finally {
+            lock.unlock();
+        }
+        log.debug("Micro batcher thread terminates.");
+    }
+
+    private Map<ByteBuffer, CompletableFuture<byte[]>> nextBatch() throws InterruptedException {
+        lock.lock();
+        try {
+            while (pending.isEmpty())
+                requestArrived.await();
+            long remaining;
+            while (pending.size() < maxSize && (remaining = maxDelayNanos - (System.nanoTime() - oldestPendingRequestTime)) > 0)
+                requestArrived.awaitNanos(remaining);
+            Map<ByteBuffer, CompletableFuture<byte[]>> batch = pending;
+            pending = new LinkedHashMap<>();
+            return batch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void send(Map<ByteBuffer, CompletableFuture<byte[]>> batch) throws InterruptedException {
+        try {
+            int size = INT_SIZE;
+            for (ByteBuffer request : batch.keySet())
+                size += INT_SIZE + request.remaining();
+            ByteBuffer message = ByteBuffer.allocate(size);
+            message.putInt(batch.size());
+            for (ByteBuffer request : batch.keySet()) {
+                message.putInt(request.remaining());
+                message.put(request.duplicate());
+            }
+            log.trace("Sending batch of {} requests with {} bytes", batch.size(), size);
+            List<byte[]> responses = exchange.exchange(message.array());
+            if (responses.size() != 1)
+                throw new IllegalStateException("Expected exactly one batch response message but got " + responses.size());
+            ByteBuffer response = ByteBuffer.wrap(responses.get(0));
+            int numResponses = response.getInt();
+            if (numResponses != batch.size())
+                throw new IllegalStateException("The batch contained " + batch.size() + " requests but the external program sent " + numResponses + " responses.");
+            for (CompletableFuture<byte[]> future : batch.values()) {
+                byte[] bytes = new byte[response.getInt()];
+                response.get(bytes);
+                future.complete(bytes);
+            }
+        } catch (RuntimeException e) {
+            batch.values().forEach(f -> f.completeExceptionally(e));
+        } catch (InterruptedException e) {
+            batch.values().forEach(f -> f.completeExceptionally(new IllegalStateException("The micro batcher has been interrupted while waiting for a batch response.")));
+            throw e;
+        }
+    }
+
+    void close() {
+        closed = true;
+        interrupt();
+    }
+}
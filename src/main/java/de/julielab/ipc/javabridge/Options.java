@@ -1,12 +1,20 @@
 package de.julielab.ipc.javabridge;
 
+import org.slf4j.event.Level;
+
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.function.Function;
 import java.util.function.Predicate;
 
 /**
  * This is class is a simple container for options given to the constructor of {@link StdioBridge}. The meaning
  * of each option is explained at its setter method.
- * @param <O> The class of the received messages. Either {@link String} or <tt>byte[]</tt>.
+ * @param <O> The class of the received messages. Either {@link String}, <tt>byte[]</tt> or {@link PooledBuffer}.
  */
 public class Options<O> {
 
@@ -18,8 +26,41 @@ public class Options<O> {
     private String multilineResponseDelimiter;
     private boolean gzipSentData;
     private boolean gzipReceivedData;
+    private boolean deflateSessionSentData;
+    private boolean deflateSessionReceivedData;
     private String externalProgramReadySignal;
     private String terminationSignalFromErrorStream;
+    private Function<String, Level> errorStreamLevelMapper;
+    private boolean discardErrorStream;
+    private int errorStreamMaxLinesPerSecond;
+    private int errorStreamRecentLinesCapacity = 100;
+    private int errorStreamLogQueueCapacity = 10000;
+    private int responseCacheMaxEntries;
+    private long responseCacheMaxBytes;
+    private Function<byte[], Object> responseCacheKeyFunction;
+    private int batchMaxSize;
+    private long batchMaxDelayMicros = 1000;
+    private int maxInFlightRequests = 1;
+    private boolean adaptiveInFlightLimit;
+    private double inFlightLatencyTolerance = 2;
+    private DirectBufferPool directBufferPool;
+    private int receiveQueueCapacity;
+    private Path trafficRecordFile;
+    private boolean asyncWriter;
+    private boolean multiplexed;
+    private boolean forkServer;
+    private int asyncWriterFlushThresholdBytes = 1 << 16;
+    private long healthCheckIntervalMillis;
+    private String healthCheckMessage;
+    private long recycleLatencyThresholdMillis;
+    private long recycleResidentSetSizeBytes;
+    private long recycleAfterRequests;
+    private long recycleAfterBytes;
+    private long recycleAfterMillis;
+    private String cpuAffinity;
+    private Integer niceLevel;
+    private Map<String, String> environment = new LinkedHashMap<>();
+    private Map<Priority, Integer> priorityWeights = new EnumMap<>(Map.of(Priority.INTERACTIVE, 8, Priority.BULK, 1));
 
     public Options(Class<O> resultType) {
         this.resultType = resultType;
@@ -33,6 +74,540 @@ public class Options<O> {
         this.terminationSignalFromErrorStream = terminationSignalFromErrorStream;
     }
 
+    public Function<String, Level> getErrorStreamLevelMapper() {
+        return errorStreamLevelMapper;
+    }
+
+    /**
+     * Maps each line the external program writes to its error stream to the log level it should be logged with.
+     * Returning <tt>null</tt> for a line causes it not to be logged. By default, all lines are logged
+     * as errors. Many libraries use STDERR for progress bars and warnings, so it often makes sense to log most lines
+     * at a lower level, e.g. <code>line -&gt; line.contains("Error") ? Level.ERROR : Level.DEBUG</code>.
+     *
+     * @param errorStreamLevelMapper A function determining the log level for each error stream line, may be null.
+     */
+    public void setErrorStreamLevelMapper(Function<String, Level> errorStreamLevelMapper) {
+        this.errorStreamLevelMapper = errorStreamLevelMapper;
+    }
+
+    public boolean isDiscardErrorStream() {
+        return discardErrorStream;
+    }
+
+    /**
+     * Whether or not the error stream of the external program should be discarded instead of logged. The error
+     * stream is still read so that the external program does not block on a full pipe, it is still checked for the
+     * {@link #setTerminationSignalFromErrorStream(String) termination signal} and the most recent lines are still
+     * available via {@link StdioBridge#getRecentErrorStreamLines()}.
+     *
+     * @param discardErrorStream If the error stream lines should not be logged.
+     */
+    public void setDiscardErrorStream(boolean discardErrorStream) {
+        this.discardErrorStream = discardErrorStream;
+    }
+
+    public int getErrorStreamMaxLinesPerSecond() {
+        return errorStreamMaxLinesPerSecond;
+    }
+
+    /**
+     * The maximum number of error stream lines logged per second. Lines beyond this limit are dropped and their
+     * number is logged once per second instead. A value of 0 or less, the default, switches rate limiting off.
+     *
+     * @param errorStreamMaxLinesPerSecond The maximum number of error stream lines to log each second.
+     */
+    public void setErrorStreamMaxLinesPerSecond(int errorStreamMaxLinesPerSecond) {
+        this.errorStreamMaxLinesPerSecond = errorStreamMaxLinesPerSecond;
+    }
+
+    public int getErrorStreamRecentLinesCapacity() {
+        return errorStreamRecentLinesCapacity;
+    }
+
+    /**
+     * The number of most recent error stream lines kept in memory for {@link StdioBridge#getRecentErrorStreamLines()}.
+     * Defaults to 100.
+     *
+     * @param errorStreamRecentLinesCapacity The number of error stream lines to remember.
+     */
+    public void setErrorStreamRecentLinesCapacity(int errorStreamRecentLinesCapacity) {
+        this.errorStreamRecentLinesCapacity = errorStreamRecentLinesCapacity;
+    }
+
+    public int getErrorStreamLogQueueCapacity() {
+        return errorStreamLogQueueCapacity;
+    }
+
+    /**
+     * Error stream lines are logged asynchronously by a separate thread so that a slow logging back-end never
+     * keeps the error stream from being drained. This is the number of lines that may wait for that thread. When the
+     * queue is full, further lines are dropped until the logging thread catches up. Defaults to 10000.
+     *
+     * @param errorStreamLogQueueCapacity The maximum number of error stream lines waiting to be logged.
+     */
+    public void setErrorStreamLogQueueCapacity(int errorStreamLogQueueCapacity) {
+        this.errorStreamLogQueueCapacity = errorStreamLogQueueCapacity;
+    }
+
+    public int getResponseCacheMaxEntries() {
+        return responseCacheMaxEntries;
+    }
+
+    /**
+     * Activates a {@link ResponseCache} for {@link StdioBridge#sendAndReceive(byte[])} holding at most the given
+     * number of responses. Only activate the cache if the external program always answers identical requests
+     * identically. Defaults to 0 which means that there is no cache unless {@link #setResponseCacheMaxBytes(long)}
+     * is set.
+     *
+     * @param responseCacheMaxEntries The maximum number of cached responses.
+     */
+    public void setResponseCacheMaxEntries(int responseCacheMaxEntries) {
+        this.responseCacheMaxEntries = responseCacheMaxEntries;
+    }
+
+    public long getResponseCacheMaxBytes() {
+        return responseCacheMaxBytes;
+    }
+
+    /**
+     * Activates a {@link ResponseCache} for {@link StdioBridge#sendAndReceive(byte[])} taking at most approximately
+     * the given number of bytes for cached requests and responses. May be combined with
+     * {@link #setResponseCacheMaxEntries(int)}. Defaults to 0 which means no size limit.
+     *
+     * @param responseCacheMaxBytes The maximum approximate size of the response cache.
+     */
+    public void setResponseCacheMaxBytes(long responseCacheMaxBytes) {
+        this.responseCacheMaxBytes = responseCacheMaxBytes;
+    }
+
+    public Function<byte[], Object> getResponseCacheKeyFunction() {
+        return responseCacheKeyFunction;
+    }
+
+    /**
+     * A function deriving the response cache key from the request data. The returned objects must implement
+     * <tt>equals()</tt> and <tt>hashCode()</tt>. By default, the request bytes themselves are the key.
+     *
+     * @param responseCacheKeyFunction The cache key function, may be null.
+     */
+    public void setResponseCacheKeyFunction(Function<byte[], Object> responseCacheKeyFunction) {
+        this.responseCacheKeyFunction = responseCacheKeyFunction;
+    }
+
+    public int getBatchMaxSize() {
+        return batchMaxSize;
+    }
+
+    /**
+     * <p>Activates micro batching for {@link StdioBridge#sendAndReceiveBatched(byte[])} when set to a value greater
+     * than 1. Requests of concurrent callers are then collected and sent as a single message containing at most this
+     * many distinct requests. This is useful for external programs, e.g. neural models, that process a batch
+     * much faster than the same number of single requests. Identical requests within a batch are sent only once.</p>
+     * <p>The batch message sent to the external program is a 4 byte big endian integer holding the number of
+     * requests, followed by each request as a 4 byte big endian length and the request bytes. The external program
+     * must answer with a single binary message of the same format holding one response for each request, in the
+     * same order. Batching thus requires the result type <tt>byte[]</tt>.</p>
+     * <p>Larger batches increase throughput, but each request may wait up to
+     * {@link #setBatchMaxDelayMicros(long)} for the batch to fill up.</p>
+     *
+     * @param batchMaxSize The maximum number of requests per batch.
+     */
+    public void setBatchMaxSize(int batchMaxSize) {
+        this.batchMaxSize = batchMaxSize;
+    }
+
+    public long getBatchMaxDelayMicros() {
+        return batchMaxDelayMicros;
+    }
+
+    /**
+     * The maximum time in microseconds a request waits for further requests to join its batch before the batch is
+     * sent, even if it has not reached {@link #setBatchMaxSize(int)}. Smaller values reduce the latency of
+     * single requests under low load, larger values give larger batches. Defaults to 1000, i.e. one millisecond.
+     *
+     * @param batchMaxDelayMicros The maximum batch delay in microseconds.
+     */
+    public void setBatchMaxDelayMicros(long batchMaxDelayMicros) {
+        this.batchMaxDelayMicros = batchMaxDelayMicros;
+    }
+
+    public Map<Priority, Integer> getPriorityWeights() {
+        return priorityWeights;
+    }
+
+    /**
+     * Sets the share of exchanges with the external program that callers of the given priority class get when
+     * callers of several priority classes are waiting. With the defaults, {@link Priority#INTERACTIVE} has the
+     * weight 8 and {@link Priority#BULK} the weight 1. Thus, while both kinds of requests are waiting, eight
+     * interactive requests are served for each bulk request. Weights smaller than 1 are treated as 1.
+     *
+     * @param priority The priority class.
+     * @param weight   The weight of the priority class.
+     * @see StdioBridge#sendAndReceive(byte[], Priority)
+     */
+    public void setPriorityWeight(Priority priority, int weight) {
+        priorityWeights.put(priority, weight);
+    }
+
+    public int getMaxInFlightRequests() {
+        return maxInFlightRequests;
+    }
+
+    /**
+     * <p>The maximum number of requests sent via {@link StdioBridge#sendAndReceive(byte[])} that may be sent to the
+     * external program before their responses have been received. Defaults to 1, i.e. each request is only sent
+     * when the response to the previous one has arrived. Callers beyond the limit wait on the Java side.</p>
+     * <p>Values greater than 1 pipeline the requests which requires that the external program answers the requests
+     * strictly in the order they have been sent. Together with {@link #setAdaptiveInFlightLimit(boolean)}, this is
+     * the upper bound of the adaptive limit.</p>
+     *
+     * @param maxInFlightRequests The maximum number of requests in flight.
+     */
+    public void setMaxInFlightRequests(int maxInFlightRequests) {
+        this.maxInFlightRequests = maxInFlightRequests;
+    }
+
+    public boolean isAdaptiveInFlightLimit() {
+        return adaptiveInFlightLimit;
+    }
+
+    /**
+     * Whether the number of requests in flight should be adapted to the observed round trip times. Sending more
+     * requests than the external program can process only fills the pipe and increases the latency. With this option,
+     * the limit starts at 1 and is increased while the round trip times stay close to the smallest observed one. It is
+     * decreased when the round trip times grow beyond {@link #setInFlightLatencyTolerance(double)} times the smallest
+     * one. The limit never exceeds {@link #setMaxInFlightRequests(int)}.
+     *
+     * @param adaptiveInFlightLimit If the in-flight limit should be adapted automatically.
+     */
+    public void setAdaptiveInFlightLimit(boolean adaptiveInFlightLimit) {
+        this.adaptiveInFlightLimit = adaptiveInFlightLimit;
+    }
+
+    public double getInFlightLatencyTolerance() {
+        return inFlightLatencyTolerance;
+    }
+
+    /**
+     * The factor by which a round trip time may exceed the smallest recently observed round trip time before the
+     * adaptive in-flight limit is decreased. Defaults to 2.
+     *
+     * @param inFlightLatencyTolerance The round trip time tolerance factor.
+     * @see #setAdaptiveInFlightLimit(boolean)
+     */
+    public void setInFlightLatencyTolerance(double inFlightLatencyTolerance) {
+        this.inFlightLatencyTolerance = inFlightLatencyTolerance;
+    }
+
+    public DirectBufferPool getDirectBufferPool() {
+        return directBufferPool;
+    }
+
+    /**
+     * The pool of direct buffers binary messages are received into if the result type is {@link PooledBuffer}.
+     * Setting the same pool for multiple bridges lets them share their buffers. If not set, each bridge with the
+     * result type {@link PooledBuffer} creates its own pool with default settings.
+     *
+     * @param directBufferPool The pool to receive messages into, may be null.
+     */
+    public void setDirectBufferPool(DirectBufferPool directBufferPool) {
+        this.directBufferPool = directBufferPool;
+    }
+
+    public long getHealthCheckIntervalMillis() {
+        return healthCheckIntervalMillis;
+    }
+
+    /**
+     * Activates periodic health checks of the external program with the given interval. Each check sends the
+     * {@link #setHealthCheckMessage(String) health check message} if the bridge has been idle for the interval and
+     * recycles the external program via {@link StdioBridge#recycle()} if it exceeds
+     * {@link #setRecycleLatencyThresholdMillis(long)} or {@link #setRecycleResidentSetSizeBytes(long)}.
+     * Defaults to 0 which means that there are no health checks.
+     *
+     * @param healthCheckIntervalMillis The time between health checks in milliseconds.
+     */
+    public void setHealthCheckIntervalMillis(long healthCheckIntervalMillis) {
+        this.healthCheckIntervalMillis = healthCheckIntervalMillis;
+    }
+
+    public String getHealthCheckMessage() {
+        return healthCheckMessage;
+    }
+
+    /**
+     * A message, e.g. <code>ping</code>, that is sent to the external program when the bridge has been idle for
+     * {@link #setHealthCheckIntervalMillis(long)}. The external program must answer it like any other request. Its
+     * round trip time is included in the latency statistics so that a degrading external program is also noticed
+     * while there is no traffic. May be null to only check the regular traffic. Not sent to
+     * {@link #setMultiplexed(boolean) multiplexed} external programs.
+     *
+     * @param healthCheckMessage The message to send to idle external programs.
+     */
+    public void setHealthCheckMessage(String healthCheckMessage) {
+        this.healthCheckMessage = healthCheckMessage;
+    }
+
+    public long getRecycleLatencyThresholdMillis() {
+        return recycleLatencyThresholdMillis;
+    }
+
+    /**
+     * The health checks recycle the external program when the 99th percentile of its recent round trip times exceeds
+     * this threshold in milliseconds. Defaults to 0, i.e. the latency is not checked.
+     *
+     * @param recycleLatencyThresholdMillis The latency threshold in milliseconds.
+     * @see #setHealthCheckIntervalMillis(long)
+     */
+    public void setRecycleLatencyThresholdMillis(long recycleLatencyThresholdMillis) {
+        this.recycleLatencyThresholdMillis = recycleLatencyThresholdMillis;
+    }
+
+    public long getRecycleResidentSetSizeBytes() {
+        return recycleResidentSetSizeBytes;
+    }
+
+    /**
+     * The health checks recycle the external program when its resident set size, read from <tt>/proc</tt> on Linux,
+     * exceeds this number of bytes. Defaults to 0, i.e. the memory consumption is not checked.
+     *
+     * @param recycleResidentSetSizeBytes The memory limit in bytes.
+     * @see #setHealthCheckIntervalMillis(long)
+     */
+    public void setRecycleResidentSetSizeBytes(long recycleResidentSetSizeBytes) {
+        this.recycleResidentSetSizeBytes = recycleResidentSetSizeBytes;
+    }
+
+    public long getRecycleAfterRequests() {
+        return recycleAfterRequests;
+    }
+
+    /**
+     * Recycles the external program after it has served the given number of <tt>sendAndReceive</tt> requests. This is
+     * useful for external programs that leak memory with each request. The replacement is started in the background
+     * and takes over the traffic only after it is ready, see {@link StdioBridge#recycle()}. Defaults to 0 which means
+     * no limit.
+     *
+     * @param recycleAfterRequests The maximum number of requests per external program instance.
+     */
+    public void setRecycleAfterRequests(long recycleAfterRequests) {
+        this.recycleAfterRequests = recycleAfterRequests;
+    }
+
+    public long getRecycleAfterBytes() {
+        return recycleAfterBytes;
+    }
+
+    /**
+     * Recycles the external program after it has been sent the given number of request bytes via
+     * <tt>sendAndReceive</tt>. Defaults to 0 which means no limit.
+     *
+     * @param recycleAfterBytes The maximum number of request bytes per external program instance.
+     * @see #setRecycleAfterRequests(long)
+     */
+    public void setRecycleAfterBytes(long recycleAfterBytes) {
+        this.recycleAfterBytes = recycleAfterBytes;
+    }
+
+    public long getRecycleAfterMillis() {
+        return recycleAfterMillis;
+    }
+
+    /**
+     * Recycles the external program after it has been running for the given time in milliseconds. The check is done
+     * with each request and periodically in the background, so the actual lifetime might be slightly longer.
+     * Defaults to 0 which means no limit.
+     *
+     * @param recycleAfterMillis The maximum lifetime of an external program instance in milliseconds.
+     * @see #setRecycleAfterRequests(long)
+     */
+    public void setRecycleAfterMillis(long recycleAfterMillis) {
+        this.recycleAfterMillis = recycleAfterMillis;
+    }
+
+    public int getReceiveQueueCapacity() {
+        return receiveQueueCapacity;
+    }
+
+    /**
+     * Bounds the number of received messages that are buffered until they are taken by <tt>receive()</tt>. When the
+     * buffer is full, the bridge stops reading the output of the external program. The pipe then fills up and the
+     * external program blocks on its next write. This is useful for external programs that push results on their
+     * own, see {@link StdioBridge#getResultPublisher()}. Defaults to 0 which means an unbounded buffer.
+     *
+     * @param receiveQueueCapacity The maximum number of buffered received messages.
+     */
+    public void setReceiveQueueCapacity(int receiveQueueCapacity) {
+        this.receiveQueueCapacity = receiveQueueCapacity;
+    }
+
+    public Path getTrafficRecordFile() {
+        return trafficRecordFile;
+    }
+
+    /**
+     * Records all requests sent via <tt>send</tt>, including streamed ones, or <tt>sendAndReceive</tt> and all
+     * responses received via <tt>receive</tt> or <tt>sendAndReceive</tt>, with their timing, to the given file. Each
+     * response of <tt>sendAndReceive</tt> is recorded with the ID of its request. The recording can be
+     * replayed with a {@link TrafficReplayer} to benchmark the Java side without the real external program or to
+     * load test the external program with realistic traffic. Defaults to null which means that nothing is recorded.
+     *
+     * @param trafficRecordFile The file to record the traffic to. An existing file is overwritten.
+     * @see TrafficRecorder
+     */
+    public void setTrafficRecordFile(Path trafficRecordFile) {
+        this.trafficRecordFile = trafficRecordFile;
+    }
+
+    public boolean isAsyncWriter() {
+        return asyncWriter;
+    }
+
+    /**
+     * Whether requests are written to the external program by a dedicated writer thread. Then, sending a request
+     * only enqueues it and the sending thread does not block on the pipe, even when the pipe buffer is full. The
+     * writer thread flushes the pipe when no more requests are queued or after
+     * {@link #setAsyncWriterFlushThresholdBytes(int)} bytes, so that the requests of many concurrent senders are
+     * combined into few writes. Since a failed write cannot be reported to the sender any more, write errors are only
+     * logged. Defaults to false.
+     *
+     * @param asyncWriter Whether to use an asynchronous writer thread.
+     */
+    public void setAsyncWriter(boolean asyncWriter) {
+        this.asyncWriter = asyncWriter;
+    }
+
+    public int getAsyncWriterFlushThresholdBytes() {
+        return asyncWriterFlushThresholdBytes;
+    }
+
+    /**
+     * The number of bytes the asynchronous writer writes before it flushes the pipe, even if more requests are
+     * queued. This is also the size of the output buffer. Defaults to 64KB.
+     *
+     * @param asyncWriterFlushThresholdBytes The flush threshold in bytes.
+     * @see #setAsyncWriter(boolean)
+     */
+    public void setAsyncWriterFlushThresholdBytes(int asyncWriterFlushThresholdBytes) {
+        this.asyncWriterFlushThresholdBytes = asyncWriterFlushThresholdBytes;
+    }
+
+    public boolean isMultiplexed() {
+        return multiplexed;
+    }
+
+    /**
+     * <p>
+     * Whether the external program hosts several independent logical endpoints, e.g. several models, that are
+     * addressed via {@link StdioBridge#channel(int)}. Then, each message in both directions starts with the 4 byte
+     * big endian ID of its channel, directly after the message length. The external program answers the requests
+     * of each channel in order, but may interleave the responses of different channels.
+     * </p>
+     * <p>
+     * Multiplexing requires the result type <tt>byte[]</tt> and can't be combined with GZIP compression or micro
+     * batching. Messages are only exchanged via the channels; the send and receive methods of the bridge itself throw
+     * an {@link IllegalStateException} and no {@link #setHealthCheckMessage(String) health check message} is sent. The
+     * termination signal is sent without a channel ID. The reference Python module <tt>stdioipc.py</tt> offers
+     * <tt>serve_channels()</tt> for multiplexed external programs. Defaults to false.
+     * </p>
+     *
+     * @param multiplexed Whether the external program is multiplexed.
+     */
+    public void setMultiplexed(boolean multiplexed) {
+        this.multiplexed = multiplexed;
+    }
+
+    public boolean isForkServer() {
+        return forkServer;
+    }
+
+    /**
+     * <p>
+     * Starts the external program once as a fork server and forks each instance of the external program from it
+     * instead of starting a new process. The external program loads its libraries and models before it hands over to
+     * the fork server loop, e.g. <tt>stdioipc.fork_server(ready_signal='Ready!')</tt> in Python, which returns only in
+     * the forked instances. Thus, new instances, e.g. on {@link StdioBridge#recycle()}, are ready in milliseconds and
+     * share the memory of the preloaded data with the fork server as long as it is not written to.
+     * </p>
+     * <p>
+     * The forked instances communicate via named pipes created with <tt>mkfifo</tt>, so this mode requires a Unix
+     * system. The external program must not start threads before forking. The ready and termination signals apply to
+     * the fork server and to each forked instance.
+     * </p>
+     *
+     * @param forkServer Whether the instances of the external program should be forked from a fork server.
+     */
+    public void setForkServer(boolean forkServer) {
+        this.forkServer = forkServer;
+    }
+
+    public String getCpuAffinity() {
+        return cpuAffinity;
+    }
+
+    /**
+     * Pins the external program to the given cores by starting it through <tt>taskset</tt>, which must be
+     * installed. The cores are given in the CPU list format of <tt>taskset</tt>, e.g. <code>0-3,8</code>. Use
+     * {@link CpuAffinity#sliceForWorker(int, int)} to spread several bridges evenly across the cores of the host.
+     *
+     * @param cpuAffinity The cores the external program may run on, may be null for no restriction.
+     */
+    public void setCpuAffinity(String cpuAffinity) {
+        this.cpuAffinity = cpuAffinity;
+    }
+
+    /**
+     * Pins the external program to the given cores.
+     *
+     * @param cpus The indices of the cores the external program may run on.
+     * @see #setCpuAffinity(String)
+     */
+    public void setCpuAffinity(int... cpus) {
+        this.cpuAffinity = IntStream.of(cpus).mapToObj(String::valueOf).collect(Collectors.joining(","));
+    }
+
+    public Integer getNiceLevel() {
+        return niceLevel;
+    }
+
+    /**
+     * Starts the external program with the given nice level through <tt>nice</tt>, which must be installed.
+     * Positive values lower the scheduling priority of the external program, e.g. to keep a bulk processing worker
+     * from slowing down the JVM. Negative values usually require privileges.
+     *
+     * @param niceLevel The nice level of the external program, may be null for the default.
+     */
+    public void setNiceLevel(Integer niceLevel) {
+        this.niceLevel = niceLevel;
+    }
+
+    public Map<String, String> getEnvironment() {
+        return environment;
+    }
+
+    /**
+     * Sets an environment variable for the external program, in addition to the environment of the JVM.
+     *
+     * @param name  The name of the variable.
+     * @param value The value of the variable.
+     */
+    public void setEnvironmentVariable(String name, String value) {
+        environment.put(name, value);
+    }
+
+    /**
+     * Limits the number of threads used by the common native math libraries of the external program by setting
+     * <tt>OMP_NUM_THREADS</tt>, <tt>MKL_NUM_THREADS</tt>, <tt>OPENBLAS_NUM_THREADS</tt> and <tt>NUMEXPR_NUM_THREADS</tt>.
+     * Without this, libraries like numpy or PyTorch start one thread per core of the host in each external program,
+     * which oversubscribes the cores when several bridges run side by side or {@link #setCpuAffinity(String)} is used.
+     *
+     * @param threads The number of threads each math library may use.
+     */
+    public void setMathLibraryThreads(int threads) {
+        for (String variable : new String[]{"OMP_NUM_THREADS", "MKL_NUM_THREADS", "OPENBLAS_NUM_THREADS", "NUMEXPR_NUM_THREADS"})
+            environment.put(variable, String.valueOf(threads));
+    }
+
     public String getExternalProgramReadySignal() {
         return externalProgramReadySignal;
     }
@@ -69,6 +644,41 @@ public class Options<O> {
         this.gzipReceivedData = gzipReceivedData;
     }
 
+    public boolean isDeflateSessionSentData() {
+        return deflateSessionSentData;
+    }
+
+    /**
+     * Whether the data sent to the external program should be compressed as one raw deflate stream that lasts as
+     * long as the external program instance. Each message ends with a sync flush, so the external program can
+     * decompress it right away, but later messages are compressed with the history of the earlier ones. For streams of
+     * small, similar messages this compresses far better than {@link #setGzipSentData(boolean)}, which starts from
+     * scratch for every message. The external program must keep one decompressor for the whole session, see
+     * <tt>deflate_requests</tt> in the reference module <tt>stdioipc.py</tt>. Can't be combined with GZIP compression
+     * of the sent data or {@link #setMultiplexed(boolean)}.
+     *
+     * @param deflateSessionSentData If the sent data should be compressed as a session deflate stream.
+     */
+    public void setDeflateSessionSentData(boolean deflateSessionSentData) {
+        this.deflateSessionSentData = deflateSessionSentData;
+    }
+
+    public boolean isDeflateSessionReceivedData() {
+        return deflateSessionReceivedData;
+    }
+
+    /**
+     * Whether the data received from the external program is one raw deflate stream with a sync flush after each
+     * message that should be decompressed, see {@link #setDeflateSessionSentData(boolean)}. Requires the result type
+     * <tt>byte[]</tt> and can't be combined with GZIP compression of the received data or
+     * {@link #setMultiplexed(boolean)}.
+     *
+     * @param deflateSessionReceivedData If the received data should be decompressed from a session deflate stream.
+     */
+    public void setDeflateSessionReceivedData(boolean deflateSessionReceivedData) {
+        this.deflateSessionReceivedData = deflateSessionReceivedData;
+    }
+
     public Class<O> getResultType() {
         return resultType;
     }
@@ -0,0 +1,80 @@
+package de.julielab.ipc.javabridge;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ * A direct {@link ByteBuffer} borrowed from a {@link DirectBufferPool}. When the result type of a bridge is
+ * <tt>PooledBuffer</tt>, each received binary message is delivered in such a buffer, positioned at the beginning
+ * of the message with its limit at the end of the message.
+ * </p>
+ * <p>
+ * The buffer must be released exactly once when the message has been processed, e.g. with try-with-resources.
+ * Afterwards, the buffer is reused for other messages and must not be accessed any more.
+ * </p>
+ */
+public class PooledBuffer implements AutoCloseable {
+    private final DirectBufferPool pool;
+    private final ByteBuffer buffer;
+    private final int sizeClass;
+    private final DirectBufferPool.LeakDetector leakDetector;
+    private final Cleaner.Cleanable cleanable;
+
+    PooledBuffer(DirectBufferPool pool, ByteBuffer buffer, int sizeClass, Throwable allocationSite) {
+        this.pool = pool;
+        this.buffer = buffer;
+        this.sizeClass = sizeClass;
+        this.leakDetector = new DirectBufferPool.LeakDetector(pool, allocationSite);
+        this.cleanable = pool.registerLeakDetection(this, leakDetector);
+    }
+
+    /**
+     * @return The underlying direct buffer.
+     * @throws IllegalStateException If the buffer has already been released.
+     */
+    public ByteBuffer buffer() {
+        if (leakDetector.released)
+            throw new IllegalStateException("The buffer has already been released to its pool.");
+        return buffer;
+    }
+
+    /**
+     * @return A copy of the content of the buffer between its position and its limit.
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[buffer().remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Returns the buffer to its pool.
+     *
+     * @throws IllegalStateException If the buffer has already been released.
+     */
+    public void release() {
+        synchronized (leakDetector) {
+            if (leakDetector.released)
+                throw new IllegalStateException("The buffer has already been released to its pool.");
+            leakDetector.released = true;
+        }
+        cleanable.clean();
+        pool.release(buffer, sizeClass);
+    }
+
+    @Override
+    public void close() {
+        release();
+    }
+
+    /**
+     * Releases the given message if it is a pooled buffer. Used where received messages are discarded.
+     *
+     * @param message A received message of any result type.
+     */
+    static void releaseIfPooled(Object message) {
+        if (message instanceof PooledBuffer)
+            ((PooledBuffer) message).release();
+    }
+}
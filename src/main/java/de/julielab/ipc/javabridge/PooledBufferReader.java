@@ -0,0 +1,81 @@
+package de.julielab.ipc.javabridge;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads binary messages of the external program into pooled direct buffers. In contrast to the {@link BinaryReader},
+ * no heap memory is allocated per message. The messages are delivered as {@link PooledBuffer}s that the receiver
+ * must release.
+ */
+public class PooledBufferReader extends Reader<PooledBuffer> {
+    private final static Logger log = LoggerFactory.getLogger(PooledBufferReader.class);
+    private final DirectBufferPool pool;
+    private final byte[] transferBuffer = new byte[1 << 16];
+
+    public PooledBufferReader(InputStream is, String externalProgramReadySignal, DirectBufferPool pool) {
+        super(is, null, externalProgramReadySignal);
+        this.pool = pool;
+    }
+
+    public void run() {
+        setName("PooledBufferReaderThread");
+        log.debug("Starting pooled buffer reader thread");
+        try {
+            if (externalProgramReadySignal != null)
+                BinaryReader.awaitReadySignal(is, externalProgramReadySignal);
+            markReady();
+            while (readFully(transferBuffer, 4)) {
+                int messageLength = ByteBuffer.wrap(transferBuffer, 0, 4).getInt();
+                // A corrupted length must not allocate buffers outside of the pool
+                if (messageLength < 0 || messageLength > pool.getMaxBufferSize())
+                    throw new IOException("The external program announced a message of " + messageLength + " bytes but the pooled buffers hold between 0 and " + pool.getMaxBufferSize() + " bytes.");
+                PooledBuffer message = pool.acquire(messageLength);
+                ByteBuffer buffer = message.buffer();
+                while (buffer.hasRemaining()) {
+                    int read = is.read(transferBuffer, 0, Math.min(transferBuffer.length, buffer.remaining()));
+                    if (read == -1) {
+                        message.release();
+                        throw new EOFException("The external program closed its output in the middle of a message.");
+                    }
+                    buffer.put(transferBuffer, 0, read);
+                }
+                buffer.flip();
+                try {
+                    deliver(message);
+                } catch (InterruptedException e) {
+                    message.release();
+                    throw e;
+                }
+                log.trace("Added message of length {} bytes to the queue", messageLength);
+            }
+        } catch (IOException e) {
+            markFailed(e);
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            // The bridge is being stopped while waiting for demand or queue space
+        } finally {
+            markTerminated();
+        }
+        log.debug("PooledBufferReader thread terminates.");
+    }
+
+    private boolean readFully(byte[] b, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = is.read(b, read, length - read);
+            if (n == -1) {
+                if (read == 0)
+                    return false;
+                throw new EOFException("The external program closed its output in the middle of a message length.");
+            }
+            read += n;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,18 @@
+package de.julielab.ipc.javabridge;
+
+/**
+ * The priority classes of requests sent via {@link StdioBridge#sendAndReceive(byte[], Priority)}. When several
+ * callers wait for the external program, they are served in a weighted round robin fashion across the priority
+ * classes. The weights are configured with {@link Options#setPriorityWeight(Priority, int)}.
+ */
+public enum Priority {
+    /**
+     * Latency sensitive requests, e.g. issued on behalf of a user waiting for the answer. This is the priority
+     * of all requests that don't specify one.
+     */
+    INTERACTIVE,
+    /**
+     * Throughput oriented requests, e.g. from batch jobs, that may wait behind interactive requests.
+     */
+    BULK
+}
@@ -3,6 +3,8 @@ package de.julielab.ipc.javabridge;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.function.Predicate;
 
@@ -11,6 +13,12 @@ public abstract class Reader<T> extends Thread {
     protected Predicate<T> resultLineIndicator;
     protected String externalProgramReadySignal;
     protected BlockingQueue<T> inputDeque;
+    private final CountDownLatch readyLatch = new CountDownLatch(1);
+    private volatile boolean ready;
+    private volatile ResultSubscription<T> subscription;
+    private boolean terminated;
+    private Throwable failure;
+    private final Object subscriptionLock = new Object();
 
     public Reader(InputStream is, Predicate<T> resultLineIndicator, String externalProgramReadySignal) {
         this.is = is;
@@ -23,6 +31,121 @@ public abstract class Reader<T> extends Thread {
         return inputDeque;
     }
 
+    /**
+     * Bounds the number of received messages that are buffered until they are taken by the receiver. When the
+     * queue is full, the reader stops reading from the external program. Must be called before the reader is
+     * started and before the queue is obtained via {@link #getInputDeque()}.
+     *
+     * @param capacity The maximum number of buffered messages or a non-positive number for an unbounded queue.
+     */
+    void setInputQueueCapacity(int capacity) {
+        this.inputDeque = capacity > 0 ? new LinkedBlockingQueue<>(capacity) : new LinkedBlockingQueue<>();
+    }
+
+    /**
+     * Hands a received message to the subscriber, if there is one, or adds it to the input queue otherwise. Blocks
+     * while the subscriber has no demand or the bounded input queue is full.
+     *
+     * @param message The received message.
+     * @throws InterruptedException If waiting for demand or queue space is interrupted.
+     */
+    protected void deliver(T message) throws InterruptedException {
+        ResultSubscription<T> s = subscription;
+        if (s != null) {
+            if (s.deliver(message))
+                return;
+            // The subscription has been cancelled, further messages go to the queue again
+            unsubscribe(s);
+        }
+        inputDeque.put(message);
+    }
+
+    /**
+     * Delivers all messages read after this call to the given subscriber instead of the input queue. There can
+     * only be one subscriber at a time. Once the subscriber cancels its subscription, another subscriber may
+     * subscribe.
+     *
+     * @param subscriber The subscriber.
+     */
+    void subscribe(Flow.Subscriber<? super T> subscriber) {
+        ResultSubscription<T> s = new ResultSubscription<>(subscriber, this::unsubscribe);
+        boolean accepted;
+        boolean completed;
+        Throwable cause;
+        synchronized (subscriptionLock) {
+            accepted = subscription == null;
+            if (accepted)
+                subscription = s;
+            completed = terminated;
+            cause = failure;
+        }
+        subscriber.onSubscribe(s);
+        if (!accepted)
+            s.complete(new IllegalStateException("The messages of the external program are already delivered to another subscriber."));
+        else if (completed)
+            s.complete(cause);
+    }
+
+    /**
+     * Frees the subscription slot if it is still held by the given subscription.
+     *
+     * @param s The cancelled subscription.
+     */
+    private void unsubscribe(ResultSubscription<T> s) {
+        synchronized (subscriptionLock) {
+            if (subscription == s)
+                subscription = null;
+        }
+    }
+
+    /**
+     * To be called by subclasses when the external program is ready to receive requests, i.e. after the
+     * ready signal has been read if one is configured.
+     */
+    protected void markReady() {
+        ready = true;
+        readyLatch.countDown();
+    }
+
+    /**
+     * To be called by subclasses when they stop reading. Releases threads waiting in {@link #awaitReady()} if
+     * the ready signal has never been read.
+     */
+    protected void markTerminated() {
+        ResultSubscription<T> s;
+        synchronized (subscriptionLock) {
+            terminated = true;
+            s = subscription;
+        }
+        readyLatch.countDown();
+        if (s != null)
+            s.complete(failure);
+    }
+
+    /**
+     * To be called by subclasses when reading fails. The failure is passed to the subscriber, if any, when
+     * {@link #markTerminated()} is called.
+     *
+     * @param failure The reason why reading failed.
+     */
+    protected void markFailed(Throwable failure) {
+        synchronized (subscriptionLock) {
+            this.failure = failure;
+        }
+    }
+
+    /**
+     * Blocks until the external program is ready to receive requests.
+     *
+     * @throws InterruptedException If waiting is interrupted.
+     * @throws IOException          If the external program stopped sending output before it was ready.
+     */
+    public void awaitReady() throws InterruptedException, IOException {
+        readyLatch.await();
+        if (!ready)
+            throw new IOException("The external program terminated before it was ready to receive requests.");
+    }
+
     public void close() throws IOException {
         is.close();
     }
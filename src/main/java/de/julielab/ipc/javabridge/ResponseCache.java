@@ -0,0 +1,222 @@
+package de.julielab.ipc.javabridge;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * <p>
+ * A least-recently-used cache of the responses of the external program, placed in front of
+ * {@link StdioBridge#sendAndReceive(byte[])}. It is only sensible for external programs whose responses depend on
+ * nothing but the request, i.e. that answer identical requests identically.
+ * </p>
+ * <p>
+ * The cache is bounded by the number of entries and, optionally, by the approximate number of bytes taken by
+ * the requests and responses it holds. Identical requests that are issued concurrently while the first of them is
+ * still waiting for its response are not sent again; they wait for the response of the first request instead.
+ * </p>
+ * <p>
+ * Cached responses are shared between all callers that receive them. Thus, they must not be modified. This
+ * particularly holds for <tt>byte[]</tt> responses.
+ * </p>
+ *
+ * @param <O> The class of the received messages.
+ * @see Options#setResponseCacheMaxEntries(int)
+ */
+public class ResponseCache<O> {
+    private final int maxEntries;
+    private final long maxBytes;
+    private final Function<byte[], Object> keyFunction;
+    private final LinkedHashMap<Object, CacheEntry<O>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Object, CompletableFuture<List<O>>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong deduplicated = new AtomicLong();
+    private long currentBytes;
+
+    /**
+     * @param maxEntries  The maximum number of cached responses, 0 or less for no limit.
+     * @param maxBytes    The maximum approximate size of the cache in bytes, 0 or less for no limit.
+     * @param keyFunction A function deriving the cache key from the request. If null, the request bytes are the key.
+     */
+    public ResponseCache(int maxEntries, long maxBytes, Function<byte[], Object> keyFunction) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.keyFunction = keyFunction != null ? keyFunction : data -> ByteBuffer.wrap(data.clone());
+    }
+
+    /**
+     * Returns the cached response for <tt>request</tt> or obtains it using <tt>exchange</tt> and caches it.
+     *
+     * @param request  The request to be sent to the external program.
+     * @param exchange The function actually sending the request and receiving the response on a cache miss.
+     * @return The, possibly cached, response.
+     * @throws InterruptedException If waiting for the response is interrupted.
+     */
+    List<O> get(byte[] request, Exchange<O> exchange) throws InterruptedException {
+        Object key = keyFunction.apply(request);
+        while (true) {
+            List<O> cached = lookup(key);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return cached;
+            }
+            CompletableFuture<List<O>> future = new CompletableFuture<>();
+            CompletableFuture<List<O>> pending = inFlight.putIfAbsent(key, future);
+            if (pending == null)
+                return exchange(key, request, exchange, future);
+            List<O> response = await(pending);
+            if (response != null) {
+                deduplicated.incrementAndGet();
+                hits.incrementAndGet();
+                return response;
+            }
+            // The caller of the identical request has been interrupted, not this one. Try again, possibly sending
+            // the request itself.
+        }
+    }
+
+    /**
+     * Sends the request on behalf of all identical requests waiting for <tt>future</tt>.
+     */
+    private List<O> exchange(Object key, byte[] request, Exchange<O> exchange, CompletableFuture<List<O>> future) throws InterruptedException {
+        List<O> response;
+        try {
+            // The response might have been cached between our lookup and the registration of the in-flight request
+            response = lookup(key);
+            if (response != null) {
+                hits.incrementAndGet();
+            } else {
+                misses.incrementAndGet();
+                response = Collections.unmodifiableList(exchange.exchange(request));
+                store(key, request, response);
+            }
+        } catch (InterruptedException | RuntimeException e) {
+            // Removed first so that waiters retrying after an interrupt don't find the failed request again
+            inFlight.remove(key, future);
+            future.completeExceptionally(e);
+            throw e;
+        }
+        inFlight.remove(key, future);
+        future.complete(response);
+        return response;
+    }
+
+    /**
+     * @return The response of the identical request or null if its caller has been interrupted.
+     */
+    private List<O> await(CompletableFuture<List<O>> pending) throws InterruptedException {
+        try {
+            return pending.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof InterruptedException)
+                return null;
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private synchronized List<O> lookup(Object key) {
+        CacheEntry<O> entry = entries.get(key);
+        return entry != null ? entry.response : null;
+    }
+
+    private synchronized void store(Object key, byte[] request, List<O> response) {
+        long size = request.length;
+        for (O o : response)
+            size += sizeOf(o);
+        if (maxBytes > 0 && size > maxBytes)
+            return;
+        CacheEntry<O> previous = entries.put(key, new CacheEntry<>(response, size));
+        if (previous != null)
+            currentBytes -= previous.size;
+        currentBytes += size;
+        Iterator<CacheEntry<O>> it = entries.values().iterator();
+        while (it.hasNext() && ((maxEntries > 0 && entries.size() > maxEntries) || (maxBytes > 0 && currentBytes > maxBytes))) {
+            currentBytes -= it.next().size;
+            it.remove();
+        }
+    }
+
+    private long sizeOf(O o) {
+        if (o instanceof byte[])
+            return ((byte[]) o).length;
+        if (o instanceof String)
+            return 2L * ((String) o).length();
+        return 16;
+    }
+
+    /**
+     * Removes all cached responses. The statistics are kept.
+     */
+    public synchronized void invalidateAll() {
+        entries.clear();
+        currentBytes = 0;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * @return The approximate number of bytes taken by the cached requests and responses.
+     */
+    public synchronized long getByteSize() {
+        return currentBytes;
+    }
+
+    /**
+     * @return The number of requests answered without sending them to the external program, including those that
+     * waited for an identical in-flight request.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return The number of requests that have been sent to the external program.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return The number of requests that waited for the response of an identical in-flight request.
+     */
+    public long getDeduplicatedCount() {
+        return deduplicated.get();
+    }
+
+    /**
+     * @return The ratio of hits to all requests or 0 if there have not been any requests yet.
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    @Override
+    public String toString() {
+        return "ResponseCache{entries=" + getEntryCount() + ", bytes=" + getByteSize() + ", hits=" + getHitCount() + ", misses=" + getMissCount() + ", deduplicated=" + getDeduplicatedCount() + ", hitRate=" + getHitRate() + "}";
+    }
+
+    private static class CacheEntry<O> {
+        private final List<O> response;
+        private final long size;
+
+        private CacheEntry(List<O> response, long size) {
+            this.response = response;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package de.julielab.ipc.javabridge;
+
+/**
+ * Reads the response to a single request from a communicator, e.g. as a list of messages or as a single message.
+ *
+ * @param <O> The class of the received messages.
+ * @param <R> The type of the response.
+ */
+@FunctionalInterface
+interface ResponseReceiver<O, R> {
+    /**
+     * @param communicator The communicator to receive from.
+     * @param requestId    The ID of the request in the traffic recording, see {@link GenericCommunicator#send(byte[])}.
+     * @return The response.
+     * @throws InterruptedException If waiting for the response is interrupted.
+     */
+    R receive(GenericCommunicator<O> communicator, long requestId) throws InterruptedException;
+}
@@ -31,4 +31,10 @@ public class ResultDecoders {
         }
         return vectors;
     };
+
+    /**
+     * This decoder wraps a byte array holding several named, typed and shaped arrays into a {@link TensorFrame}.
+     * The fields of the frame are only decoded when they are accessed. Refer to {@link TensorFrame} for the format.
+     */
+    public static Function<byte[], TensorFrame> decodeTensorFrame = TensorFrame::wrap;
 }
@@ -0,0 +1,97 @@
+package de.julielab.ipc.javabridge;
+
+import java.util.concurrent.Flow;
+import java.util.function.Consumer;
+
+/**
+ * <p>
+ * The subscription of a {@link Flow.Subscriber} to the messages read by a {@link Reader}. The reader thread hands
+ * each message to {@link #deliver(Object)} which blocks while the subscriber has no outstanding demand. Then, the
+ * reader stops reading from the pipe, the pipe fills up and eventually the external program blocks when writing
+ * further results. Thus, the demand of the subscriber propagates to the external program without buffering.
+ * </p>
+ *
+ * @param <T> The class of the delivered messages.
+ */
+class ResultSubscription<T> implements Flow.Subscription {
+    private final Flow.Subscriber<? super T> subscriber;
+    private final Consumer<ResultSubscription<T>> onCancel;
+    private long demand;
+    private boolean cancelled;
+
+    /**
+     * @param subscriber The subscriber.
+     * @param onCancel   Called when the subscriber cancels the subscription, e.g. to make room for a new subscriber.
+     */
+    ResultSubscription(Flow.Subscriber<? super T> subscriber, Consumer<ResultSubscription<T>> onCancel) {
+        this.subscriber = subscriber;
+        this.onCancel = onCancel;
+    }
+
+    @Override
+    public void request(long n) {
+        if (n <= 0) {
+            if (terminate()) {
+                subscriber.onError(new IllegalArgumentException("The requested number of messages must be positive but was " + n + "."));
+                onCancel.accept(this);
+            }
+            return;
+        }
+        synchronized (this) {
+            demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void cancel() {
+        synchronized (this) {
+            cancelled = true;
+            notifyAll();
+        }
+        onCancel.accept(this);
+    }
+
+    /**
+     * Waits for demand and hands the message to the subscriber.
+     *
+     * @param message The message to deliver.
+     * @return False if the subscription has been cancelled and the message has not been delivered.
+     * @throws InterruptedException If waiting for demand is interrupted.
+     */
+    boolean deliver(T message) throws InterruptedException {
+        synchronized (this) {
+            while (demand == 0 && !cancelled)
+                wait();
+            if (cancelled)
+                return false;
+            if (demand != Long.MAX_VALUE)
+                --demand;
+        }
+        // Not synchronized so that the subscriber may request more messages from onNext()
+        subscriber.onNext(message);
+        return true;
+    }
+
+    /**
+     * Signals the end of the message stream to the subscriber.
+     *
+     * @param failure The reason why reading failed or null if the external program has just closed its output.
+     */
+    void complete(Throwable failure) {
+        if (!terminate())
+            return;
+        if (failure != null)
+            subscriber.onError(failure);
+        else
+            subscriber.onComplete();
+    }
+
+    private synchronized boolean terminate() {
+        if (cancelled)
+            return false;
+        cancelled = true;
+        notifyAll();
+        return true;
+    }
+}
@@ -0,0 +1,77 @@
+package de.julielab.ipc.javabridge;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses all messages sent to one instance of the external program as a single raw deflate stream. Each
+ * message ends with a sync flush, so the receiver can decompress it completely as soon as it has arrived, while
+ * later messages are compressed with the history of the earlier ones. This is much more effective than
+ * compressing each message on its own when the messages are small and similar.
+ *
+ * @see Options#setDeflateSessionSentData(boolean)
+ */
+class SessionDeflater {
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private byte[] output = new byte[8192];
+
+    /**
+     * @param data A message.
+     * @return The compressed message, ending with a sync flush marker.
+     */
+    byte[] compress(byte[] data) {
+        deflater.setInput(data);
+        int size = deflate(0, Deflater.SYNC_FLUSH);
+        return Arrays.copyOf(output, size);
+    }
+
+    private int deflate(int size, int flush) {
+        while (true) {
+            if (size == output.length)
+                output = Arrays.copyOf(output, output.length * 2);
+            int space = output.length - size;
+            int n = deflater.deflate(output, size, space, flush);
+            size += n;
+            // The deflater has written everything it could if it did not fill the available space
+            if (n < space && (flush != Deflater.NO_FLUSH || deflater.needsInput()))
+                return size;
+        }
+    }
+
+    /**
+     * Returns a stream that compresses a single message of arbitrary size into <tt>os</tt>. Closing the stream
+     * ends the message with a sync flush and closes <tt>os</tt>, but not the deflate session.
+     *
+     * @param os The stream receiving the compressed message.
+     * @return The compressing stream.
+     */
+    OutputStream stream(OutputStream os) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                deflater.setInput(b, off, len);
+                // The output buffer may grow while deflating
+                int size = deflate(0, Deflater.NO_FLUSH);
+                os.write(output, 0, size);
+            }
+
+            @Override
+            public void close() throws IOException {
+                int size = deflate(0, Deflater.SYNC_FLUSH);
+                os.write(output, 0, size);
+                os.close();
+            }
+        };
+    }
+
+    void end() {
+        deflater.end();
+    }
+}
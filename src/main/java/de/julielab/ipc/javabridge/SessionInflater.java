@@ -0,0 +1,45 @@
+package de.julielab.ipc.javabridge;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses the messages received from one instance of the external program that are compressed as a single
+ * raw deflate stream with a sync flush at the end of each message.
+ *
+ * @see SessionDeflater
+ * @see Options#setDeflateSessionReceivedData(boolean)
+ */
+class SessionInflater {
+    private final Inflater inflater = new Inflater(true);
+    private byte[] output = new byte[8192];
+
+    /**
+     * @param data A compressed message.
+     * @return The decompressed message.
+     * @throws IOException If the data is not a valid continuation of the deflate stream.
+     */
+    byte[] decompress(byte[] data) throws IOException {
+        inflater.setInput(data);
+        int size = 0;
+        try {
+            while (true) {
+                if (size == output.length)
+                    output = Arrays.copyOf(output, output.length * 2);
+                int n = inflater.inflate(output, size, output.length - size);
+                size += n;
+                if (n == 0 && (inflater.needsInput() || inflater.finished()))
+                    break;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("The received data is not part of a valid deflate stream.", e);
+        }
+        return Arrays.copyOf(output, size);
+    }
+
+    void end() {
+        inflater.end();
+    }
+}
@@ -4,15 +4,27 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * <p>
@@ -51,75 +63,488 @@ import java.util.zip.GZIPOutputStream;
 public class StdioBridge<O> {
 
     private final static Logger log = LoggerFactory.getLogger(StdioBridge.class);
+    private static final int MIN_LATENCY_SAMPLES = 100;
+    private static final long DEFAULT_MAINTENANCE_INTERVAL_MILLIS = 1000;
+    private static final long MAINTENANCE_SHUTDOWN_TIMEOUT_MILLIS = 10000;
+    private static final Function<byte[], byte[]> RAW_CHANNEL_DECODER = Function.identity();
 
     private String[] arguments;
-    private Process process;
-    private GenericCommunicator communicator;
-    private ErrorStreamConsumer errorStreamConsumer;
+    private volatile Worker<O> worker;
+    private Thread startingThread;
     private Options<O> options;
     private  boolean isRunning;
+    private ResponseCache<O> responseCache;
+    private MicroBatcher microBatcher;
+    private final ExchangeScheduler exchangeScheduler;
+    /**
+     * Whether only one request may be in flight at any time. Then, the exchanges don't need the receive tickets.
+     */
+    private final boolean serialExchanges;
+    private AdaptiveInFlightLimit inFlightLimit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Object sendLock = new Object();
+    private final ReentrantLock receiveLock = new ReentrantLock();
+    private final Condition receiveTurn = receiveLock.newCondition();
+    private final Set<Long> abandonedTickets = new HashSet<>();
+    private long nextSendTicket;
+    private long nextReceiveTicket;
+    private int responsesToDiscard;
+    private final ReentrantReadWriteLock workerLock = new ReentrantReadWriteLock();
+    private final LatencyTracker latencyTracker = new LatencyTracker(1024);
+    private volatile long lastExchangeTime = System.nanoTime();
+    private ScheduledExecutorService maintenanceExecutor;
+    private final AtomicBoolean recycling = new AtomicBoolean();
+    private TrafficRecorder trafficRecorder;
+    private final Map<Integer, LogicalChannel<?>> channels = new ConcurrentHashMap<>();
+    private final AtomicInteger workerGenerations = new AtomicInteger();
+    /**
+     * The newest generation of the external program whose {@link ChannelReader} has terminated. Requests on logical
+     * channels sent to this or an older generation will never be answered.
+     */
+    private final AtomicInteger terminatedWorkerGeneration = new AtomicInteger();
+    private ForkServer forkServer;
 
     public StdioBridge(Options<O> options, String... arguments) {
         this.options = options;
         if (arguments.length == 0)
             throw new IllegalArgumentException("No external program to run has been specified.");
         this.arguments = arguments;
+        if (options.isAdaptiveInFlightLimit()) {
+            inFlightLimit = new AdaptiveInFlightLimit(options.getMaxInFlightRequests(), options.getInFlightLatencyTolerance());
+            this.exchangeScheduler = new ExchangeScheduler(inFlightLimit.getLimit(), options.getPriorityWeights());
+        } else {
+            this.exchangeScheduler = new ExchangeScheduler(options.getMaxInFlightRequests(), options.getPriorityWeights());
+        }
+        this.serialExchanges = inFlightLimit == null && options.getMaxInFlightRequests() <= 1;
+        if (options.getResponseCacheMaxEntries() > 0 || options.getResponseCacheMaxBytes() > 0)
+            responseCache = new ResponseCache<>(options.getResponseCacheMaxEntries(), options.getResponseCacheMaxBytes(), options.getResponseCacheKeyFunction());
     }
 
 
     public void start() throws IOException {
-        String[] command = new String[arguments.length + 1];
-        command[0] = options.getExecutable();
-        System.arraycopy(arguments, 0, command, 1, arguments.length);
-        ProcessBuilder builder = new ProcessBuilder(command);
-        process = builder.start();
-        errorStreamConsumer = new
-                ErrorStreamConsumer(process.getErrorStream(), options.getTerminationSignalFromErrorStream(), Thread.currentThread());
-        errorStreamConsumer.start();
-        log.debug("Started process with arguments {}", Arrays.toString(arguments));
-        BufferedInputStream bis = new BufferedInputStream(process.getInputStream());
-        BufferedOutputStream bos = new BufferedOutputStream(process.getOutputStream());
+        validateOptions();
+        startingThread = Thread.currentThread();
+        if (options.getTrafficRecordFile() != null)
+            trafficRecorder = new TrafficRecorder(options.getTrafficRecordFile(), options.getResultType().equals(String.class));
+        if (options.isForkServer()) {
+            Process process = startProcess();
+            ErrorStreamConsumer errorStreamConsumer = startErrorStreamConsumer(process);
+            try {
+                forkServer = new ForkServer(process, errorStreamConsumer, options.getExternalProgramReadySignal(), options.getExternalProgramTerminationSignal());
+            } catch (IOException | RuntimeException e) {
+                // E.g. the fork server did not send its ready signal
+                process.destroy();
+                errorStreamConsumer.close();
+                throw e;
+            }
+            log.debug("Started fork server with arguments {}", Arrays.toString(arguments));
+        }
+        try {
+            worker = startWorker();
+        } catch (IOException | RuntimeException e) {
+            if (forkServer != null) {
+                forkServer.close();
+                forkServer = null;
+            }
+            throw e;
+        }
+        if (options.getBatchMaxSize() > 1) {
+            // The result type has been checked to be byte[]
+            microBatcher = new MicroBatcher(options.getBatchMaxSize(), options.getBatchMaxDelayMicros(), data -> exchange(data, Priority.INTERACTIVE).stream().map(byte[].class::cast).collect(Collectors.toList()));
+            microBatcher.start();
+        }
+        if (options.getHealthCheckIntervalMillis() > 0 || options.getRecycleAfterRequests() > 0 || options.getRecycleAfterBytes() > 0 || options.getRecycleAfterMillis() > 0) {
+            maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "StdioBridgeMaintenanceThread");
+                t.setDaemon(true);
+                return t;
+            });
+            long interval = options.getHealthCheckIntervalMillis() > 0 ? options.getHealthCheckIntervalMillis() : DEFAULT_MAINTENANCE_INTERVAL_MILLIS;
+            maintenanceExecutor.scheduleWithFixedDelay(this::checkHealth, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        isRunning = true;
+    }
+
+    /**
+     * Checks that the options can be combined before any external program is started.
+     *
+     * @throws IllegalArgumentException If the options contradict each other.
+     */
+    private void validateOptions() {
+        if (options.getBatchMaxSize() > 1 && !options.getResultType().equals(byte[].class))
+            throw new IllegalArgumentException("Micro batching requires the result type byte[] because the responses to a batch are sent as one binary message.");
+        if (options.getResultType().equals(PooledBuffer.class)) {
+            if (options.isGzipReceivedData())
+                throw new IllegalArgumentException("Received data can't be decompressed from GZIP into pooled buffers.");
+            if (responseCache != null)
+                throw new IllegalArgumentException("Pooled buffers can't be cached because they are released by the receiver.");
+        }
+        if (options.isMultiplexed()) {
+            if (!options.getResultType().equals(byte[].class))
+                throw new IllegalArgumentException("Multiplexed channels require the result type byte[].");
+            if (options.isGzipSentData() || options.isGzipReceivedData())
+                throw new IllegalArgumentException("Multiplexed channels can't be combined with GZIP compression.");
+            if (options.getBatchMaxSize() > 1)
+                throw new IllegalArgumentException("Multiplexed channels can't be combined with micro batching because batches are not sent on a channel.");
+            if (options.isDeflateSessionSentData() || options.isDeflateSessionReceivedData())
+                throw new IllegalArgumentException("Multiplexed channels can't be combined with session deflate compression.");
+        }
+        if (options.isDeflateSessionSentData() && options.isGzipSentData() || options.isDeflateSessionReceivedData() && options.isGzipReceivedData())
+            throw new IllegalArgumentException("Session deflate compression can't be combined with GZIP compression of the same data.");
+        if (options.isDeflateSessionReceivedData() && !options.getResultType().equals(byte[].class))
+            throw new IllegalArgumentException("Received data can only be decompressed from a session deflate stream with the result type byte[].");
+    }
+
+    /**
+     * Starts the external program, or forks it from the fork server, and the threads reading its output.
+     *
+     * @return The started external program.
+     * @throws IOException If starting the external program fails.
+     */
+    private Worker<O> startWorker() throws IOException {
+        Process process = null;
+        ErrorStreamConsumer errorStreamConsumer = null;
+        ProcessHandle handle;
+        InputStream is;
+        OutputStream os;
+        if (forkServer != null) {
+            ForkServer.ForkedProcess forked = forkServer.fork();
+            handle = forked.getHandle();
+            is = forked.getInputStream();
+            os = forked.getOutputStream();
+            log.debug("Forked process {} from the fork server", handle.pid());
+        } else {
+            process = startProcess();
+            errorStreamConsumer = startErrorStreamConsumer(process);
+            handle = process.toHandle();
+            is = process.getInputStream();
+            os = process.getOutputStream();
+            log.debug("Started process with arguments {}", Arrays.toString(arguments));
+        }
+        BufferedInputStream bis = new BufferedInputStream(is);
+        BufferedOutputStream bos = options.isAsyncWriter() ? new BufferedOutputStream(os, options.getAsyncWriterFlushThresholdBytes()) : new BufferedOutputStream(os);
 
         Reader<O> r;
         final boolean isStringResponse = options.getResultType().equals(String.class);
-        if (isStringResponse)
-            r = (Reader<O>) new StringReader(bis, (Predicate<String>) options.getResultLineIndicator(), options.getExternalProgramReadySignal());
+        int generation = workerGenerations.incrementAndGet();
+        if (options.isMultiplexed())
+            r = asResultReader(new ChannelReader(bis, options.getExternalProgramReadySignal(), channels::get, generation,
+                    failure -> onChannelReaderTerminated(generation, failure)));
+        else if (isStringResponse)
+            r = asResultReader(new StringReader(bis, (Predicate<String>) options.getResultLineIndicator(), options.getExternalProgramReadySignal()));
         else if (options.getResultType().equals(byte[].class))
-            r = (Reader<O>) new BinaryReader(bis, options.getExternalProgramReadySignal(), options.isGzipReceivedData());
-        else
-            throw new IllegalArgumentException("The result type must be String or byte[] but was " + options.getResultType());
+            r = asResultReader(new BinaryReader(bis, options.getExternalProgramReadySignal(), options.isGzipReceivedData(),
+                    options.isDeflateSessionReceivedData() ? new SessionInflater() : null));
+        else if (options.getResultType().equals(PooledBuffer.class)) {
+            DirectBufferPool pool = options.getDirectBufferPool() != null ? options.getDirectBufferPool() : new DirectBufferPool();
+            r = asResultReader(new PooledBufferReader(bis, options.getExternalProgramReadySignal(), pool));
+        } else
+            throw new IllegalArgumentException("The result type must be String, byte[] or PooledBuffer but was " + options.getResultType());
+        r.setInputQueueCapacity(options.getReceiveQueueCapacity());
         // Currently, only the StringReader supports the MultilineResponseDelimiter. If specified for the BinaryReader, it would cause
         // the GenericCommunicator#receive method to wait for the signal that can never come because no strings are returned from the external program
         // but just binary streams.
-        communicator = new GenericCommunicator<>(r, bos, isStringResponse ? options.getMultilineResponseDelimiter() : null, options.isGzipSentData());
-        isRunning = true;
+        GenericCommunicator<O> communicator = new GenericCommunicator<>(r, bos, isStringResponse ? options.getMultilineResponseDelimiter() : null, options.isGzipSentData(),
+                options.isAsyncWriter(), options.getAsyncWriterFlushThresholdBytes());
+        // A new session per process: the external program starts with a fresh decompressor, also after a recycle
+        if (options.isDeflateSessionSentData())
+            communicator.setSessionDeflater(new SessionDeflater());
+        communicator.setTrafficRecorder(trafficRecorder);
+        return new Worker<>(handle, process, communicator, errorStreamConsumer, generation);
+    }
+
+    /**
+     * Types a reader with the result type of the bridge. Only called with the reader chosen for the result type,
+     * thus the messages of the reader are instances of <tt>O</tt>.
+     */
+    @SuppressWarnings("unchecked")
+    private static <O> Reader<O> asResultReader(Reader<?> reader) {
+        return (Reader<O>) reader;
+    }
+
+    private Process startProcess() throws IOException {
+        return createProcessBuilder().start();
+    }
+
+    /**
+     * Creates the process builder for the external program. The environment variables from the options are added to
+     * the environment of the JVM.
+     *
+     * @return The process builder starting the external program.
+     */
+    ProcessBuilder createProcessBuilder() {
+        ProcessBuilder builder = new ProcessBuilder(buildCommand());
+        builder.environment().putAll(options.getEnvironment());
+        return builder;
+    }
+
+    private ErrorStreamConsumer startErrorStreamConsumer(Process process) {
+        ErrorStreamConsumer errorStreamConsumer = new
+                ErrorStreamConsumer(process.getErrorStream(), options.getTerminationSignalFromErrorStream(), startingThread,
+                options.getErrorStreamLevelMapper(), options.isDiscardErrorStream(), options.getErrorStreamMaxLinesPerSecond(),
+                options.getErrorStreamRecentLinesCapacity(), options.getErrorStreamLogQueueCapacity());
+        errorStreamConsumer.start();
+        return errorStreamConsumer;
+    }
+
+    /**
+     * Builds the command line of the external program. CPU pinning and the nice level are applied by prefixing the
+     * command with <tt>taskset</tt> and <tt>nice</tt>.
+     *
+     * @return The command starting the external program.
+     */
+    private List<String> buildCommand() {
+        List<String> command = new ArrayList<>();
+        if (options.getCpuAffinity() != null) {
+            command.add("taskset");
+            command.add("-c");
+            command.add(options.getCpuAffinity());
+        }
+        if (options.getNiceLevel() != null) {
+            command.add("nice");
+            command.add("-n");
+            command.add(String.valueOf(options.getNiceLevel()));
+        }
+        command.add(options.getExecutable());
+        command.addAll(Arrays.asList(arguments));
+        return command;
     }
 
     public boolean isRunning() {
         return isRunning;
     }
 
+    /**
+     * <p>Returns the most recent lines the external program has written to its error stream. The number of lines kept
+     * is configured by {@link Options#setErrorStreamRecentLinesCapacity(int)}.</p>
+     * <p>This is useful to report the cause of a failure of the external program even if its error stream is
+     * discarded or rate limited for logging.</p>
+     *
+     * @return The most recent error stream lines, oldest first.
+     */
+    public List<String> getRecentErrorStreamLines() {
+        Worker<O> w = worker;
+        if (w == null)
+            return Collections.emptyList();
+        // Forked processes write to the error stream of the fork server
+        ErrorStreamConsumer errorStreamConsumer = w.errorStreamConsumer != null ? w.errorStreamConsumer : forkServer.getErrorStreamConsumer();
+        return errorStreamConsumer.getRecentLines();
+    }
+
+    /**
+     * @return The cache of responses to {@link #sendAndReceive(byte[])} requests or <tt>null</tt> if response caching
+     * has not been activated in the {@link Options}.
+     * @see Options#setResponseCacheMaxEntries(int)
+     */
+    public ResponseCache<O> getResponseCache() {
+        return responseCache;
+    }
+
     public void stop() throws InterruptedException, IOException {
-        if (options.getExternalProgramTerminationSignal() != null) {
-            communicator.send(options.getExternalProgramTerminationSignal().getBytes());
-            log.debug("Sent the external process termination signal \"{}\" and waiting for the process to end.", options.getExternalProgramTerminationSignal());
-            process.waitFor();
-        }
-        if (communicator != null)
-            communicator.close();
-        if (errorStreamConsumer != null)
-            errorStreamConsumer.close();
-        if (process != null) {
-            if (process.isAlive()) {
-                process.destroy();
-                process.waitFor();
-            }
-            int exitValue = process.exitValue();
-            log.debug("Process exited with exit value {}. The run arguments was: {}", exitValue, Arrays.toString(arguments));
+        if (maintenanceExecutor != null) {
+            maintenanceExecutor.shutdownNow();
+            // A recycle in progress must not replace the worker after it has been stopped here
+            if (!maintenanceExecutor.awaitTermination(MAINTENANCE_SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+                log.warn("The maintenance thread did not end within {}ms. An external program started by a concurrent recycle might not be stopped.", MAINTENANCE_SHUTDOWN_TIMEOUT_MILLIS);
+        }
+        if (microBatcher != null)
+            microBatcher.close();
+        if (responseCache != null)
+            log.debug("Response cache statistics: {}", responseCache);
+        if (worker != null)
+            stopWorker(worker);
+        if (forkServer != null) {
+            forkServer.close();
+            forkServer = null;
+        }
+        if (trafficRecorder != null) {
+            log.debug("Recorded {} requests and responses to {}", trafficRecorder.getRecordCount(), options.getTrafficRecordFile());
+            trafficRecorder.close();
         }
         isRunning = false;
     }
 
+    private void stopWorker(Worker<O> worker) throws InterruptedException, IOException {
+        // The termination signal is not part of the recorded traffic
+        worker.communicator.setTrafficRecorder(null);
+        try {
+            // A crashed program can't receive the termination signal anymore
+            if (options.getExternalProgramTerminationSignal() != null && worker.handle.isAlive()) {
+                worker.communicator.send(options.getExternalProgramTerminationSignal().getBytes());
+                log.debug("Sent the external process termination signal \"{}\" and waiting for the process to end.", options.getExternalProgramTerminationSignal());
+                worker.waitFor();
+            }
+            worker.communicator.close();
+            if (worker.handle.isAlive()) {
+                worker.handle.destroy();
+                worker.waitFor();
+            }
+        } catch (InterruptedException e) {
+            // The process must not outlive the bridge
+            worker.handle.destroyForcibly();
+            throw e;
+        }
+        // Closed after the process has ended so that its last error output is still logged
+        if (worker.errorStreamConsumer != null)
+            worker.errorStreamConsumer.close();
+        if (worker.process != null)
+            log.debug("Process exited with exit value {}. The run arguments was: {}", worker.process.exitValue(), Arrays.toString(arguments));
+        else
+            log.debug("Forked process {} exited.", worker.handle.pid());
+    }
+
+    /**
+     * <p>Replaces the external program by a freshly started instance. The new instance is started while the current
+     * one keeps serving requests. Only when the new instance is ready, i.e. has sent the
+     * {@link Options#setExternalProgramReadySignal(String) ready signal} if one is configured, the requests in flight
+     * are completed and new requests are sent to the new instance. Then, the old instance is stopped.</p>
+     * <p>This is meant for external programs whose performance degrades over time, e.g. due to memory leaks.
+     * Recycling is also done automatically by the health checks configured with
+     * {@link Options#setHealthCheckIntervalMillis(long)}. Messages should then only be exchanged via the
+     * <tt>sendAndReceive</tt> methods because a response to a {@link #send(byte[])} call might get lost
+     * when the external program is replaced before {@link #receive()} is called.</p>
+     *
+     * @throws IOException          If the new instance could not be started.
+     * @throws InterruptedException If waiting for the new instance to become ready is interrupted.
+     */
+    public void recycle() throws IOException, InterruptedException {
+        Worker<O> replacement = startWorker();
+        try {
+            replacement.communicator.awaitReady();
+        } catch (IOException | InterruptedException e) {
+            stopWorker(replacement);
+            throw e;
+        }
+        Worker<O> old;
+        try {
+            workerLock.writeLock().lockInterruptibly();
+        } catch (InterruptedException e) {
+            // E.g. the bridge is being stopped during an automatic recycle
+            stopWorker(replacement);
+            throw e;
+        }
+        try {
+            old = worker;
+            worker = replacement;
+            receiveLock.lock();
+            try {
+                // All requests to the old instance have been answered. Responses to abandoned requests are not
+                // going to be sent by the new instance.
+                abandonedTickets.clear();
+                responsesToDiscard = 0;
+                nextReceiveTicket = nextSendTicket;
+            } finally {
+                receiveLock.unlock();
+            }
+        } finally {
+            workerLock.writeLock().unlock();
+        }
+        latencyTracker.reset();
+        log.debug("Replaced the external process {} by {}", old.handle.pid(), replacement.handle.pid());
+        stopWorker(old);
+    }
+
+    /**
+     * Returns the given percentile of the round trip times of the most recent <tt>sendAndReceive</tt> exchanges with
+     * the current external program instance.
+     *
+     * @param percentile The percentile between 0 and 1, e.g. 0.99.
+     * @return The percentile of the recent round trip times in milliseconds or -1 if there has been no exchange yet.
+     */
+    public double getLatencyPercentileMillis(double percentile) {
+        long nanos = latencyTracker.getPercentile(percentile);
+        return nanos < 0 ? -1 : nanos / 1e6;
+    }
+
+    /**
+     * Run periodically by the maintenance thread. Sends the health check message if the bridge has been idle and
+     * recycles the external program if its latency or memory consumption exceeds the configured limits.
+     */
+    private void checkHealth() {
+        try {
+            long intervalNanos = TimeUnit.MILLISECONDS.toNanos(options.getHealthCheckIntervalMillis());
+            // The responses of a multiplexed external program are dispatched to the channels, a ping would never be answered
+            if (options.getHealthCheckMessage() != null && !options.isMultiplexed() && intervalNanos > 0 && System.nanoTime() - lastExchangeTime >= intervalNanos) {
+                log.trace("Sending health check message to the idle external program");
+                // The response is not needed, pooled buffers are released right away. Pings are not counted towards
+                // the recycling policy, which is meant for the requests of the application.
+                exchange(options.getHealthCheckMessage().getBytes(StandardCharsets.UTF_8), Priority.INTERACTIVE,
+                        (c, requestId) -> c.receive(PooledBuffer::releaseIfPooled, requestId), false);
+            }
+            Worker<O> w = worker;
+            String reason = getRecyclingReason(w);
+            long p99 = latencyTracker.getPercentile(0.99);
+            if (options.getRecycleLatencyThresholdMillis() > 0 && latencyTracker.getSampleCount() >= MIN_LATENCY_SAMPLES && p99 > TimeUnit.MILLISECONDS.toNanos(options.getRecycleLatencyThresholdMillis()))
+                reason = "its 99th latency percentile of " + p99 / 1e6 + "ms exceeds the threshold of " + options.getRecycleLatencyThresholdMillis() + "ms";
+            long rss = w.getResidentSetSize();
+            if (options.getRecycleResidentSetSizeBytes() > 0 && rss > options.getRecycleResidentSetSizeBytes())
+                reason = "its resident set size of " + rss + " bytes exceeds the limit of " + options.getRecycleResidentSetSizeBytes() + " bytes";
+            if (reason != null && recycling.compareAndSet(false, true)) {
+                try {
+                    log.info("Recycling the external process {} because {}.", w.handle.pid(), reason);
+                    recycle();
+                } finally {
+                    recycling.set(false);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("The health check of the external program failed.", e);
+        }
+    }
+
+    /**
+     * Checks the recycling policy configured by {@link Options#setRecycleAfterRequests(long)},
+     * {@link Options#setRecycleAfterBytes(long)} and {@link Options#setRecycleAfterMillis(long)}.
+     *
+     * @param w The external program instance to check.
+     * @return The reason to recycle the instance or null if it does not need to be recycled.
+     */
+    private String getRecyclingReason(Worker<O> w) {
+        if (options.getRecycleAfterRequests() > 0 && w.requests.get() >= options.getRecycleAfterRequests())
+            return "it has served " + w.requests.get() + " requests";
+        if (options.getRecycleAfterBytes() > 0 && w.bytesSent.get() >= options.getRecycleAfterBytes())
+            return "it has been sent " + w.bytesSent.get() + " bytes";
+        if (options.getRecycleAfterMillis() > 0 && System.nanoTime() - w.startTime >= TimeUnit.MILLISECONDS.toNanos(options.getRecycleAfterMillis()))
+            return "it has been running for more than " + options.getRecycleAfterMillis() + "ms";
+        return null;
+    }
+
+    /**
+     * Counts the exchange for the recycling policy and recycles the external program in the background if the
+     * policy requires it. Traffic continues to be served by the current instance until the replacement is ready.
+     *
+     * @param w            The external program instance that served the exchange.
+     * @param requestBytes The size of the request.
+     */
+    private void countExchange(Worker<O> w, int requestBytes) {
+        w.requests.incrementAndGet();
+        w.bytesSent.addAndGet(requestBytes);
+        if (maintenanceExecutor == null || recycling.get())
+            return;
+        String reason = getRecyclingReason(w);
+        if (reason != null && recycling.compareAndSet(false, true)) {
+            try {
+                maintenanceExecutor.execute(() -> {
+                    try {
+                        log.debug("Recycling the external process {} because {}.", w.handle.pid(), reason);
+                        recycle();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (Exception e) {
+                        log.error("Recycling the external program failed.", e);
+                    } finally {
+                        recycling.set(false);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // The bridge is being stopped
+                recycling.set(false);
+            }
+        }
+    }
+
     /**
      * Synchronously sends the given string data to the external program. It must be programmed in a way to accept
      * these data.
@@ -127,15 +552,94 @@ public class StdioBridge<O> {
      * @param data The message to be sent to the external process.
      */
     public void send(byte[] data) {
-        if (communicator == null)
+        checkNotMultiplexed();
+        send(worker, data);
+    }
+
+    /**
+     * @return The ID of the request in the traffic recording.
+     */
+    private long send(Worker<O> w, byte[] data) {
+        if (w == null)
             throw new IllegalStateException("The internal Python-Java communicator has not been initialized. Did you forget to execute start()?");
-        communicator.send(data);
+        return w.communicator.send(data);
     }
 
     public void send(String data) {
         send(data.getBytes(StandardCharsets.UTF_8));
     }
 
+    /**
+     * <p>
+     * Sends a message read from the given stream to the external program without holding it in memory as a whole,
+     * e.g. a large document read from a file or a socket. Gzip compression, if enabled, is also applied on the fly.
+     * </p>
+     * <p>
+     * If the length is unknown, exceeds 2GB or the data is gzipped, the message is sent in the chunked format
+     * described at {@link ChunkedOutputStream}. The reference Python module <tt>stdioipc.py</tt> reads chunked
+     * messages transparently, other external programs must support the format themselves.
+     * </p>
+     *
+     * @param in     The stream to read the message from. It is not closed.
+     * @param length The number of bytes to send or -1 to send everything up to the end of the stream.
+     * @throws IOException              If reading the stream or writing to the external program fails.
+     * @throws IllegalArgumentException If the length is smaller than -1.
+     */
+    public void send(InputStream in, long length) throws IOException {
+        if (length < -1)
+            throw new IllegalArgumentException("The length must be -1 for an unknown length or at least 0 but was " + length + ".");
+        checkNotMultiplexed();
+        Worker<O> w = worker;
+        if (w == null)
+            throw new IllegalStateException("The internal Python-Java communicator has not been initialized. Did you forget to execute start()?");
+        w.communicator.send(in, length);
+    }
+
+    /**
+     * Sends the content of the given file as a single message to the external program without reading it into a
+     * byte array first.
+     *
+     * @param file The file to send.
+     * @throws IOException If reading the file or writing to the external program fails.
+     * @see #send(FileChannel, long, long)
+     */
+    public void send(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            send(channel, 0, channel.size());
+        }
+    }
+
+    /**
+     * <p>
+     * Sends a region of a file as a single message to the external program. The data is transferred from the file
+     * channel to the pipe with {@link FileChannel#transferTo(long, long, WritableByteChannel)} and is never held as
+     * a whole on the Java heap. Since the pipe to the external program is not a channel itself, the transfer still
+     * passes through a small fixed-size buffer.
+     * </p>
+     * <p>
+     * Regions larger than 2GB and gzipped data are sent in the chunked format described at
+     * {@link #send(InputStream, long)}.
+     * </p>
+     *
+     * @param channel  The file to send from. Its position is not changed and it is not closed.
+     * @param position The file position of the first byte to send.
+     * @param length   The number of bytes to send.
+     * @throws IOException              If reading the file or writing to the external program fails.
+     * @throws IllegalArgumentException If the region does not lie within the file.
+     */
+    public void send(FileChannel channel, long position, long length) throws IOException {
+        if (position < 0 || length < 0)
+            throw new IllegalArgumentException("The position and the length must not be negative but were " + position + " and " + length + ".");
+        long size = channel.size();
+        if (position > size - length)
+            throw new IllegalArgumentException("The region of " + length + " bytes at position " + position + " exceeds the file size of " + size + " bytes.");
+        checkNotMultiplexed();
+        Worker<O> w = worker;
+        if (w == null)
+            throw new IllegalStateException("The internal Python-Java communicator has not been initialized. Did you forget to execute start()?");
+        w.communicator.send(channel, position, length);
+    }
+
     /**
      * <p>Receives data from the external process.</p>
      * <p>For this purpose, this method will <em>block</em> until data is available. If {@link Options#getResultLineIndicator()}
@@ -147,7 +651,79 @@ public class StdioBridge<O> {
      * @throws InterruptedException If the method is interrupted while waiting for the next input.
      */
     public Stream<O> receive() throws InterruptedException {
-        List<O> lines = communicator.receive();
+        checkNotMultiplexed();
+        return reshape(worker.communicator.receive());
+    }
+
+    /**
+     * Receives a single message from the external process. In contrast to {@link #receive()}, no intermediate list
+     * and stream are created. This method cannot be used together with
+     * {@link Options#setMultilineResponseDelimiter(String)}.
+     *
+     * @return The next message received from the external process.
+     * @throws InterruptedException  If the method is interrupted while waiting for the next message.
+     * @throws IllegalStateException If a multiline response delimiter is configured.
+     */
+    public O receiveOne() throws InterruptedException {
+        checkNotMultiplexed();
+        return reshape(worker.communicator.receiveOne());
+    }
+
+    /**
+     * Receives the next response from the external process and hands each of its messages to the given consumer.
+     * If a multiline response delimiter is configured, all messages up to the delimiter are handed over, otherwise
+     * exactly one.
+     *
+     * @param consumer Receives the messages of the response.
+     * @return The number of messages of the response.
+     * @throws InterruptedException If the method is interrupted while waiting for the next message.
+     */
+    public int receive(Consumer<? super O> consumer) throws InterruptedException {
+        checkNotMultiplexed();
+        return worker.communicator.receive(reshapingConsumer(consumer));
+    }
+
+    /**
+     * <p>
+     * Returns a publisher of the messages received from the external program for programs that push results on
+     * their own, e.g. progress events or incremental results, instead of answering requests. Messages are read from
+     * the external program only as far as the subscriber has requested them. Without demand, the output pipe
+     * fills up and the external program blocks on its next write, so no messages pile up in memory.
+     * </p>
+     * <p>
+     * There can be only one subscriber at a time; further subscribers are signalled an
+     * {@link IllegalStateException}. Messages received before the subscription remain available to
+     * {@link #receive()} and messages received after the subscription has been cancelled go to
+     * {@link #receive()} again. While subscribed, <tt>receive()</tt> and <tt>sendAndReceive()</tt> must not be used
+     * because they would wait for messages that are delivered to the subscriber instead. The subscription is bound
+     * to the current instance of the external program and is completed when it terminates, e.g. when it is
+     * {@link #recycle() recycled}.
+     * </p>
+     *
+     * @return A publisher of the received messages.
+     */
+    public Flow.Publisher<O> getResultPublisher() {
+        checkNotMultiplexed();
+        return subscriber -> {
+            Worker<O> w = worker;
+            if (w == null)
+                throw new IllegalStateException("The internal Python-Java communicator has not been initialized. Did you forget to execute start()?");
+            w.communicator.subscribe(options.getResultReshaper() == null ? subscriber : new ReshapingSubscriber<>(subscriber, options.getResultReshaper()));
+        };
+    }
+
+    /**
+     * The messages of a multiplexed external program are dispatched to the logical channels. Exchanging messages
+     * with the bridge itself would wait for responses that are never delivered to it.
+     *
+     * @throws IllegalStateException If the bridge is multiplexed.
+     */
+    private void checkNotMultiplexed() {
+        if (options.isMultiplexed())
+            throw new IllegalStateException("The messages of a multiplexed external program must be sent and received via its logical channels, see StdioBridge#channel(int).");
+    }
+
+    private Stream<O> reshape(List<O> lines) {
         if (options.getResultReshaper() != null) {
             Function<O, O> transformator = options.getResultReshaper();
             return lines.stream().map(transformator::apply);
@@ -155,155 +731,510 @@ public class StdioBridge<O> {
         return lines.stream();
     }
 
+    private O reshape(O message) {
+        return options.getResultReshaper() != null ? options.getResultReshaper().apply(message) : message;
+    }
+
+    private Consumer<O> reshapingConsumer(Consumer<? super O> consumer) {
+        if (options.getResultReshaper() != null) {
+            Function<O, O> transformator = options.getResultReshaper();
+            return message -> consumer.accept(transformator.apply(message));
+        }
+        return consumer::accept;
+    }
+
     /**
      * Just calls {@link #send(byte[])} and {@link #receive()} one ofter the other. Exclusively using this method
      * ensures that there is always something to read and the receive method does not block forever.
+     * Concurrent calls to this method are served one after the other unless {@link Options#setMaxInFlightRequests(int)}
+     * allows several requests in flight. If a {@link ResponseCache} has been
+     * configured, cached responses are returned without contacting the external program.
+     * The request has the priority {@link Priority#INTERACTIVE}.
      *
      * @param data The data to send.
      * @return The received response.
      * @throws InterruptedException It waiting for a response is interrupted.
      */
     public Stream<O> sendAndReceive(byte[] data) throws InterruptedException {
+        return sendAndReceive(data, Priority.INTERACTIVE);
+    }
+
+    /**
+     * Like {@link #sendAndReceive(byte[])} but with the given priority. When multiple callers wait for their turn to
+     * exchange messages with the external program, they are served by weighted round robin across the
+     * priority classes. The weights are set via {@link Options#setPriorityWeight(Priority, int)}.
+     *
+     * @param data     The data to send.
+     * @param priority The priority class of the request.
+     * @return The received response.
+     * @throws InterruptedException It waiting for a response is interrupted.
+     */
+    public Stream<O> sendAndReceive(byte[] data, Priority priority) throws InterruptedException {
+        checkNotMultiplexed();
         long sendandreceivetime = System.currentTimeMillis();
-        long time = System.currentTimeMillis();
-        send(data);
-        time = System.currentTimeMillis() - time;
-        log.trace("Sending data took {}ms", time);
-        time = System.currentTimeMillis();
-        final Stream<O> receivedData = receive();
-        time = System.currentTimeMillis() - time;
-        log.trace("Receiving data took {}ms", time);
+        final List<O> receivedData = responseCache != null ? responseCache.get(data, d -> exchange(d, priority)) : exchange(data, priority);
         sendandreceivetime = System.currentTimeMillis() - sendandreceivetime;
         log.trace("sendAndReceive took {}ms", sendandreceivetime);
-        return receivedData;
+        return reshape(receivedData);
     }
 
-    public Stream<O> sendAndReceive(String data) throws InterruptedException {
-        return sendAndReceive(data.getBytes(StandardCharsets.UTF_8));
+    public Stream<O> sendAndReceive(String data, Priority priority) throws InterruptedException {
+        return sendAndReceive(data.getBytes(StandardCharsets.UTF_8), priority);
     }
-}
 
+    /**
+     * Like {@link #sendAndReceive(byte[])} for external programs that answer each request with exactly one message.
+     * The response is returned directly, without creating an intermediate list and stream. This method cannot be
+     * used together with {@link Options#setMultilineResponseDelimiter(String)}.
+     *
+     * @param data The data to send.
+     * @return The received response.
+     * @throws InterruptedException  If waiting for the response is interrupted.
+     * @throws IllegalStateException If a multiline response delimiter is configured.
+     */
+    public O sendAndReceiveOne(byte[] data) throws InterruptedException {
+        return sendAndReceiveOne(data, Priority.INTERACTIVE);
+    }
 
-class GenericCommunicator<O> {
-    private final static Logger log = LoggerFactory.getLogger(GenericCommunicator.class);
-    private final Reader<O> reader;
-    private final Writer writer;
-    private BlockingQueue<O> inputDeque;
-    private Deque<byte[]> outputDeque = new ArrayDeque<>();
-    private BufferedOutputStream bos;
-    private String multilineResponseDelimiter;
-    private boolean gzipSent;
-
-    public GenericCommunicator(Reader<O> reader, BufferedOutputStream bos, String multilineResponseDelimiter, boolean gzipSent) {
-        this.bos = bos;
-        this.multilineResponseDelimiter = multilineResponseDelimiter;
-        this.gzipSent = gzipSent;
-        this.writer = new Writer();
-        this.reader = reader;
-        this.inputDeque = reader.getInputDeque();
-        this.reader.start();
-    }
-
-    public void close() throws IOException {
-        if (!inputDeque.isEmpty())
-            log.warn("Python-Java bridge was closed before all data was received from the external program:" + inputDeque.stream().map(Object::toString).collect(Collectors.joining(", ")));
-        reader.interrupt();
-        reader.close();
-        bos.close();
-        if (!outputDeque.isEmpty())
-            log.warn("Python-Java bridge was closed before all data was sent to the external program: " + outputDeque.stream().map(Object::toString).collect(Collectors.joining(", ")));
-        inputDeque = null;
-        outputDeque = null;
+    /**
+     * Like {@link #sendAndReceiveOne(byte[])} with the given priority.
+     *
+     * @param data     The data to send.
+     * @param priority The priority class of the request.
+     * @return The received response.
+     * @throws InterruptedException  If waiting for the response is interrupted.
+     * @throws IllegalStateException If a multiline response delimiter is configured.
+     */
+    public O sendAndReceiveOne(byte[] data, Priority priority) throws InterruptedException {
+        checkNotMultiplexed();
+        // Check before sending because the response could not be assigned to a request afterwards
+        if (options.getMultilineResponseDelimiter() != null)
+            throw new IllegalStateException("A single message cannot be received when responses consist of multiple messages terminated by the delimiter '" + options.getMultilineResponseDelimiter() + "'.");
+        final O response;
+        if (responseCache != null) {
+            List<O> cached = responseCache.get(data, d -> exchange(d, priority));
+            if (cached.size() != 1)
+                throw new IllegalStateException("Expected exactly one response message but got " + cached.size() + ".");
+            response = cached.get(0);
+        } else {
+            response = exchange(data, priority, GenericCommunicator::receiveOne);
+        }
+        return reshape(response);
     }
 
-    public void send(byte[] data) {
-        outputDeque.add(data);
-        writer.run();
+    public O sendAndReceiveOne(String data) throws InterruptedException {
+        return sendAndReceiveOne(data.getBytes(StandardCharsets.UTF_8));
     }
 
-    public List<O> receive() throws InterruptedException {
-        List<O> receivedData = new ArrayList<>();
-        if (inputDeque == null)
-            throw new IllegalStateException("This communicator has already been closed, further calls to receive() are not permitted.");
-        log.trace("Waiting for something to be read");
-        if (multilineResponseDelimiter == null) {
-            receivedData.add(inputDeque.take());
-        } else {
-            O response;
-            while (!(response = inputDeque.take()).equals(multilineResponseDelimiter)) {
-                receivedData.add(response);
+    /**
+     * Like {@link #sendAndReceive(byte[])} but hands each message of the response to the given consumer instead of
+     * collecting the messages into a stream. The consumer is called by the thread of the caller while it holds its
+     * turn to receive, so it should be quick when several requests are in flight. Cached responses are also
+     * handed to the consumer.
+     *
+     * @param data     The data to send.
+     * @param consumer Receives the messages of the response.
+     * @return The number of messages of the response.
+     * @throws InterruptedException If waiting for the response is interrupted.
+     */
+    public int sendAndReceive(byte[] data, Consumer<? super O> consumer) throws InterruptedException {
+        return sendAndReceive(data, Priority.INTERACTIVE, consumer);
+    }
+
+    /**
+     * Like {@link #sendAndReceive(byte[], Consumer)} with the given priority.
+     *
+     * @param data     The data to send.
+     * @param priority The priority class of the request.
+     * @param consumer Receives the messages of the response.
+     * @return The number of messages of the response.
+     * @throws InterruptedException If waiting for the response is interrupted.
+     */
+    public int sendAndReceive(byte[] data, Priority priority, Consumer<? super O> consumer) throws InterruptedException {
+        checkNotMultiplexed();
+        Consumer<O> reshapingConsumer = reshapingConsumer(consumer);
+        if (responseCache != null) {
+            List<O> cached = responseCache.get(data, d -> exchange(d, priority));
+            for (int i = 0; i < cached.size(); i++)
+                reshapingConsumer.accept(cached.get(i));
+            return cached.size();
+        }
+        return exchange(data, priority, (c, requestId) -> c.receive(reshapingConsumer, requestId));
+    }
+
+    public int sendAndReceive(String data, Consumer<? super O> consumer) throws InterruptedException {
+        return sendAndReceive(data.getBytes(StandardCharsets.UTF_8), consumer);
+    }
+
+    /**
+     * <p>Sends the given request as part of a batch of requests and returns the response to it. This method is meant
+     * to be called concurrently from many threads. The requests of all threads are collected and sent as one
+     * batch message as soon as {@link Options#setBatchMaxSize(int)} requests are available or the oldest request
+     * has waited for {@link Options#setBatchMaxDelayMicros(long)} microseconds. The external program must
+     * then answer with one message containing the responses for the whole batch. Refer to {@link Options#setBatchMaxSize(int)}
+     * for the message format.</p>
+     * <p>Batching requires the result type <tt>byte[]</tt>.</p>
+     *
+     * @param data The request to send.
+     * @return The response to the request.
+     * @throws InterruptedException If waiting for the response is interrupted.
+     */
+    public O sendAndReceiveBatched(byte[] data) throws InterruptedException {
+        if (microBatcher == null)
+            throw new IllegalStateException("Micro batching is not active. It is activated by setting Options#setBatchMaxSize(int) to a value greater than 1 before start() is called.");
+        return reshape(options.getResultType().cast(microBatcher.sendAndReceive(data)));
+    }
+
+    public O sendAndReceiveBatched(String data) throws InterruptedException {
+        return sendAndReceiveBatched(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the logical channel with the given ID of a multiplexed external program, opening it without a decoder if
+     * necessary.
+     *
+     * @param id The channel ID.
+     * @return The channel.
+     * @throws IllegalStateException If the bridge is not multiplexed or the channel has been opened with a decoder.
+     * @see Options#setMultiplexed(boolean)
+     */
+    public LogicalChannel<byte[]> channel(int id) {
+        if (!options.isMultiplexed())
+            throw new IllegalStateException("Logical channels require Options#setMultiplexed(true).");
+        LogicalChannel<?> channel = channels.computeIfAbsent(id, k -> new LogicalChannel<>(this, k, RAW_CHANNEL_DECODER));
+        if (channel.getDecoder() != RAW_CHANNEL_DECODER)
+            throw new IllegalStateException("The channel " + id + " has been opened with a decoder.");
+        // The raw decoder passes the messages through as byte arrays
+        @SuppressWarnings("unchecked")
+        LogicalChannel<byte[]> rawChannel = (LogicalChannel<byte[]>) channel;
+        return rawChannel;
+    }
+
+    /**
+     * Opens the logical channel with the given ID of a multiplexed external program. The messages of the channel
+     * are decoded with the given decoder, e.g. one of the {@link ResultDecoders}.
+     *
+     * @param id      The channel ID.
+     * @param decoder The decoder for the messages received on this channel.
+     * @param <R>     The type of the decoded messages.
+     * @return The channel.
+     * @throws IllegalStateException If the bridge is not multiplexed or the channel is already open.
+     * @see Options#setMultiplexed(boolean)
+     */
+    public <R> LogicalChannel<R> channel(int id, Function<byte[], R> decoder) {
+        if (!options.isMultiplexed())
+            throw new IllegalStateException("Logical channels require Options#setMultiplexed(true).");
+        LogicalChannel<R> channel = new LogicalChannel<>(this, id, decoder);
+        if (channels.putIfAbsent(id, channel) != null)
+            throw new IllegalStateException("The channel " + id + " is already open.");
+        return channel;
+    }
+
+    /**
+     * @return The open logical channels.
+     */
+    public Collection<LogicalChannel<?>> getChannels() {
+        return Collections.unmodifiableCollection(channels.values());
+    }
+
+    Lock workerReadLock() {
+        return workerLock.readLock();
+    }
+
+    /**
+     * Sends an already framed channel message. Must be called while holding the {@link #workerReadLock()}.
+     *
+     * @param frame The channel ID followed by the message.
+     */
+    void sendOnChannel(byte[] frame) {
+        Worker<O> w = worker;
+        if (w == null)
+            throw new IllegalStateException("The internal Python-Java communicator has not been initialized. Did you forget to execute start()?");
+        w.communicator.send(frame);
+        countExchange(w, frame.length);
+    }
+
+    /**
+     * @return The generation of the current external program instance, incremented with each (re)start.
+     */
+    int getWorkerGeneration() {
+        Worker<O> w = worker;
+        return w != null ? w.generation : 0;
+    }
+
+    int getTerminatedWorkerGeneration() {
+        return terminatedWorkerGeneration.get();
+    }
+
+    private void onChannelReaderTerminated(int generation, Throwable failure) {
+        // Set before failing the pending requests so that requests registered concurrently see the termination
+        terminatedWorkerGeneration.accumulateAndGet(generation, Math::max);
+        for (LogicalChannel<?> channel : channels.values())
+            channel.onTerminated(generation, failure);
+    }
+
+    /**
+     * @return The number of requests that may currently be sent to the external program before their responses
+     * have been received.
+     * @see Options#setMaxInFlightRequests(int)
+     */
+    public int getInFlightLimit() {
+        return exchangeScheduler.getPermits();
+    }
+
+    private List<O> exchange(byte[] data, Priority priority) throws InterruptedException {
+        return exchange(data, priority, GenericCommunicator::receive);
+    }
+
+    private <R> R exchange(byte[] data, Priority priority, ResponseReceiver<O, R> receiver) throws InterruptedException {
+        return exchange(data, priority, receiver, true);
+    }
+
+    /**
+     * Sends the request and receives its response in turn with the other requests in flight.
+     *
+     * @param data     The request.
+     * @param priority The priority class of the request.
+     * @param receiver Reads the response from the communicator, e.g. as a list or as a single message.
+     * @param counted  Whether the exchange counts towards the recycling policy, false for health check pings.
+     * @param <R>      The type of the response returned by the receiver.
+     * @return The response as returned by the receiver.
+     * @throws InterruptedException If waiting for the exchange or the response is interrupted.
+     */
+    private <R> R exchange(byte[] data, Priority priority, ResponseReceiver<O, R> receiver, boolean counted) throws InterruptedException {
+        if (serialExchanges)
+            return exchangeSerially(data, priority, receiver, counted);
+        exchangeScheduler.acquire(priority);
+        try {
+            workerLock.readLock().lockInterruptibly();
+        } catch (InterruptedException e) {
+            exchangeScheduler.release();
+            throw e;
+        }
+        try {
+            Worker<O> w = worker;
+            long ticket;
+            long requestId;
+            int inFlightAtSend;
+            long time = System.currentTimeMillis();
+            long start = System.nanoTime();
+            synchronized (sendLock) {
+                requestId = send(w, data);
+                ticket = nextSendTicket++;
+                inFlightAtSend = inFlight.incrementAndGet();
+            }
+            time = System.currentTimeMillis() - time;
+            log.trace("Sending data took {}ms", time);
+            time = System.currentTimeMillis();
+            final R receivedData;
+            try {
+                receivedData = receiveInTurn(ticket, requestId, receiver);
+            } catch (RuntimeException e) {
+                if (inFlightLimit != null)
+                    exchangeScheduler.setPermits(inFlightLimit.onError());
+                throw e;
+            } finally {
+                inFlight.decrementAndGet();
             }
+            time = System.currentTimeMillis() - time;
+            log.trace("Receiving data took {}ms", time);
+            long rtt = System.nanoTime() - start;
+            latencyTracker.record(rtt);
+            lastExchangeTime = System.nanoTime();
+            if (counted)
+                countExchange(w, data.length);
+            if (inFlightLimit != null)
+                exchangeScheduler.setPermits(inFlightLimit.onSample(rtt, inFlightAtSend));
+            return receivedData;
+        } finally {
+            workerLock.readLock().unlock();
+            exchangeScheduler.release();
         }
-        log.trace("Reading from internal buffer {} messages.", receivedData.size());
-        return receivedData;
     }
 
-    private class Writer {
-        private ByteBuffer buffer = ByteBuffer.allocate(4);
+    /**
+     * Sends the request and receives its response while holding the only permit of the scheduler. Since no other
+     * request can be in flight, the receive tickets are not needed.
+     *
+     * @param data     The request.
+     * @param priority The priority class of the request.
+     * @param receiver Reads the response from the communicator.
+     * @param counted  Whether the exchange counts towards the recycling policy.
+     * @param <R>      The type of the response returned by the receiver.
+     * @return The response as returned by the receiver.
+     * @throws InterruptedException If waiting for the exchange or the response is interrupted.
+     */
+    private <R> R exchangeSerially(byte[] data, Priority priority, ResponseReceiver<O, R> receiver, boolean counted) throws InterruptedException {
+        exchangeScheduler.acquire(priority);
+        try {
+            workerLock.readLock().lockInterruptibly();
+            try {
+                Worker<O> w = worker;
+                long start = System.nanoTime();
+                long requestId = send(w, data);
+                // Counted as to be discarded until it has actually been received, also if this caller is
+                // interrupted while the responses of earlier requests are discarded
+                ++responsesToDiscard;
+                // Responses to requests whose callers have been interrupted arrive first
+                while (responsesToDiscard > 1) {
+                    w.communicator.receive(PooledBuffer::releaseIfPooled);
+                    --responsesToDiscard;
+                }
+                R receivedData = receiver.receive(w.communicator, requestId);
+                --responsesToDiscard;
+                long rtt = System.nanoTime() - start;
+                latencyTracker.record(rtt);
+                lastExchangeTime = System.nanoTime();
+                if (counted)
+                    countExchange(w, data.length);
+                return receivedData;
+            } finally {
+                workerLock.readLock().unlock();
+            }
+        } finally {
+            exchangeScheduler.release();
+        }
+    }
 
-        public void run() {
+    /**
+     * Receives the response for the request with the given ticket. When multiple requests are in flight, the
+     * external program answers them in the order they were sent. Thus, each caller waits until the responses of
+     * all requests sent before its own have been received. The responses of requests whose callers have been
+     * interrupted are received and discarded.
+     *
+     * @param ticket    The sequence number of the request.
+     * @param requestId The ID of the request in the traffic recording.
+     * @param receiver  Reads the response from the communicator.
+     * @return The response to the request.
+     * @throws InterruptedException If waiting for the response is interrupted.
+     */
+    private <R> R receiveInTurn(long ticket, long requestId, ResponseReceiver<O, R> receiver) throws InterruptedException {
+        receiveLock.lock();
+        try {
+            while (ticket != nextReceiveTicket)
+                receiveTurn.await();
+        } catch (InterruptedException e) {
+            abandonedTickets.add(ticket);
+            throw e;
+        } finally {
+            receiveLock.unlock();
+        }
+        boolean received = false;
+        try {
+            while (responsesToDiscard > 0) {
+                worker.communicator.receive(PooledBuffer::releaseIfPooled);
+                --responsesToDiscard;
+            }
+            R receivedData = receiver.receive(worker.communicator, requestId);
+            received = true;
+            return receivedData;
+        } finally {
+            receiveLock.lock();
             try {
-                while (!outputDeque.isEmpty()) {
-                    byte[] toWrite = outputDeque.pop();
-                    log.trace("Writing: " + toWrite);
-                    if (gzipSent) {
-                        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        final BufferedOutputStream bos = new BufferedOutputStream(new GZIPOutputStream(baos));
-                        bos.write(toWrite);
-                        bos.close();
-                        toWrite = baos.toByteArray();
-                    }
-                    buffer.putInt(toWrite.length);
-                    long time = System.currentTimeMillis();
-                    bos.write(buffer.array());
-                    bos.write(toWrite);
-                    buffer.clear();
-                    // Important! When we don't flush, the data so sent will most like just reside in the buffer,
-                    // at least the last part of it, and dont get sent to the external process. The external process
-                    // will then probably block indefinitely, waiting for our request to finish.
-                    bos.flush();
-                    time = System.currentTimeMillis() - time;
-                    log.trace("Sending data over pipe took {}ms", time);
+                if (!received)
+                    ++responsesToDiscard;
+                ++nextReceiveTicket;
+                while (abandonedTickets.remove(nextReceiveTicket)) {
+                    ++responsesToDiscard;
+                    ++nextReceiveTicket;
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
+                receiveTurn.signalAll();
+            } finally {
+                receiveLock.unlock();
             }
         }
     }
-}
 
-class ErrorStreamConsumer extends Thread {
-    private final static Logger log = LoggerFactory.getLogger(ErrorStreamConsumer.class);
-    private InputStream is;
-    private String terminationSignal;
-    private Thread bridgeThread;
-
-    ErrorStreamConsumer(InputStream is, String terminationSignal, Thread bridgeThread) {
-        this.is = is;
-        this.terminationSignal = terminationSignal;
-        this.bridgeThread = bridgeThread;
-    }
-
-    public void close() throws IOException {
-        is.close();
-        interrupt();
-    }
-
-    public void run() {
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(is))) {
-            String line;
-            boolean stop = false;
-            while (!stop && (line = br.readLine()) != null) {
-                log.error(line);
-                if (terminationSignal != null && line.contains(terminationSignal)) {
-                    stop = true;
-                    log.error("The external program did output the termination signal '" + terminationSignal + "' in its error output stream. Check the error log for more information.");
-                    bridgeThread.interrupt();
+    public Stream<O> sendAndReceive(String data) throws InterruptedException {
+        return sendAndReceive(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Applies the {@link Options#getResultReshaper() result reshaper} to the messages passed to a subscriber.
+     */
+    private static class ReshapingSubscriber<O> implements Flow.Subscriber<O> {
+        private final Flow.Subscriber<? super O> subscriber;
+        private final Function<O, O> reshaper;
+
+        private ReshapingSubscriber(Flow.Subscriber<? super O> subscriber, Function<O, O> reshaper) {
+            this.subscriber = subscriber;
+            this.reshaper = reshaper;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscriber.onSubscribe(subscription);
+        }
+
+        @Override
+        public void onNext(O item) {
+            subscriber.onNext(reshaper.apply(item));
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            subscriber.onError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            subscriber.onComplete();
+        }
+    }
+
+    /**
+     * A running instance of the external program together with the objects communicating with it.
+     */
+    private static class Worker<O> {
+        private final ProcessHandle handle;
+        /**
+         * The process if it has been started by this bridge, null if it has been forked by the fork server.
+         */
+        private final Process process;
+        private final GenericCommunicator<O> communicator;
+        private final ErrorStreamConsumer errorStreamConsumer;
+        private final long startTime = System.nanoTime();
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong bytesSent = new AtomicLong();
+        private final int generation;
+
+        /**
+         * @param errorStreamConsumer The consumer of the error stream, null for forked processes whose error stream is
+         *                            consumed with the one of the fork server.
+         */
+        private Worker(ProcessHandle handle, Process process, GenericCommunicator<O> communicator, ErrorStreamConsumer errorStreamConsumer, int generation) {
+            this.handle = handle;
+            this.process = process;
+            this.communicator = communicator;
+            this.errorStreamConsumer = errorStreamConsumer;
+            this.generation = generation;
+        }
+
+        private void waitFor() throws InterruptedException {
+            if (process != null) {
+                process.waitFor();
+                return;
+            }
+            try {
+                handle.onExit().get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Waiting for the forked process " + handle.pid() + " to end failed.", e);
+            }
+        }
+
+        /**
+         * @return The resident set size of the process in bytes, read from <tt>/proc</tt>, or -1 if it is not available.
+         */
+        private long getResidentSetSize() {
+            try {
+                for (String line : Files.readAllLines(Paths.get("/proc", String.valueOf(handle.pid()), "status"))) {
+                    if (line.startsWith("VmRSS:"))
+                        return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
                 }
+            } catch (IOException | NumberFormatException e) {
+                // Not a Linux system or the process has already terminated
             }
-        } catch (IOException ioe) {
-            ioe.printStackTrace();
+            return -1;
         }
-        log.debug("Error stream thread terminates." );
     }
-}
\ No newline at end of file
+}
@@ -28,20 +28,28 @@ public class StringReader extends Reader<String> {
                 log.debug("Waiting for the signal that the external program is ready ('{}')", externalProgramReadySignal);
             while (!externalReadySignalSent) {
                 line = br.readLine();
+                if (line == null)
+                    return;
                 externalReadySignalSent = line.equals(externalProgramReadySignal);
             }
+            markReady();
             while ((line = br.readLine()) != null) {
                 synchronized (this) {
                     if (resultLineIndicator == null || resultLineIndicator.test(line)) {
                         if (line.length() > 0)
-                            inputDeque.add(line);
+                            deliver(line);
                         notify();
                     }
                 }
                 log.trace("Received: {}", line);
             }
         } catch (IOException e) {
+            markFailed(e);
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            // The bridge is being stopped while waiting for demand or queue space
+        } finally {
+            markTerminated();
         }
         log.debug("String reader thread terminates" );
     }
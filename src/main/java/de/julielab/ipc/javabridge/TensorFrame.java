@@ -0,0 +1,283 @@
+package de.julielab.ipc.javabridge;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>
+ * A view on a binary response that contains several named, typed and shaped arrays, e.g. the token IDs, offsets,
+ * embeddings and scores computed by a model for a single request.
+ * </p>
+ * <p>
+ * Only the header is parsed when the frame is created. The data of a field is decoded when it is accessed, in bulk
+ * from the underlying buffer. The frame has the following format:
+ * <ol>
+ *     <li>1 byte: the byte order of all following numbers, <code>&gt;</code> for big endian, <code>&lt;</code> for little endian</li>
+ *     <li>4 bytes: the number of fields</li>
+ *     <li>For each field:
+ *     <ol>
+ *         <li>2 bytes: the length of the field name in bytes</li>
+ *         <li>the UTF-8 encoded field name</li>
+ *         <li>1 byte: the data type code of the field, see {@link DType}</li>
+ *         <li>1 byte: the number of dimensions of the field</li>
+ *         <li>4 bytes for each dimension: the size of the dimension</li>
+ *         <li>4 bytes: the offset of the field data from the beginning of the frame</li>
+ *     </ol>
+ *     </li>
+ *     <li>The field data, each field as a contiguous row-major array</li>
+ * </ol>
+ * The reference Python module <tt>stdioipc.py</tt> offers <tt>encode_tensor_frame()</tt> to create such frames.
+ * </p>
+ *
+ * @see ResultDecoders#decodeTensorFrame
+ */
+public class TensorFrame {
+    private final ByteBuffer buffer;
+    private final Map<String, Field> fields;
+
+    private TensorFrame(ByteBuffer buffer) {
+        this.buffer = buffer;
+        ByteBuffer header = buffer.duplicate();
+        byte byteOrder = header.get();
+        if (byteOrder == '<')
+            header.order(ByteOrder.LITTLE_ENDIAN);
+        else if (byteOrder != '>')
+            throw new IllegalArgumentException("The buffer does not hold a tensor frame, the byte order marker is '" + (char) byteOrder + "'.");
+        this.buffer.order(header.order());
+        int numFields = header.getInt();
+        Map<String, Field> fields = new LinkedHashMap<>(numFields * 2);
+        for (int i = 0; i < numFields; i++) {
+            byte[] nameBytes = new byte[header.getShort() & 0xffff];
+            header.get(nameBytes);
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+            DType dtype = DType.forCode(header.get());
+            int[] shape = new int[header.get() & 0xff];
+            for (int j = 0; j < shape.length; j++)
+                shape[j] = header.getInt();
+            int offset = header.getInt();
+            fields.put(name, new Field(dtype, shape, offset));
+        }
+        this.fields = Collections.unmodifiableMap(fields);
+    }
+
+    /**
+     * @param bytes A binary message holding a tensor frame.
+     * @return A view on the frame. The byte array is not copied.
+     */
+    public static TensorFrame wrap(byte[] bytes) {
+        return new TensorFrame(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * @param buffer A buffer holding a tensor frame from its position to its limit.
+     * @return A view on the frame. The buffer data is not copied.
+     */
+    public static TensorFrame wrap(ByteBuffer buffer) {
+        return new TensorFrame(buffer.slice());
+    }
+
+    /**
+     * @return The names of the fields in the order they appear in the frame.
+     */
+    public Set<String> getFieldNames() {
+        return fields.keySet();
+    }
+
+    public boolean hasField(String name) {
+        return fields.containsKey(name);
+    }
+
+    public DType getDType(String name) {
+        return field(name).dtype;
+    }
+
+    public int[] getShape(String name) {
+        return field(name).shape.clone();
+    }
+
+    /**
+     * @param name A field name.
+     * @return The number of elements of the field, i.e. the product of its dimensions.
+     */
+    public int getSize(String name) {
+        return field(name).size();
+    }
+
+    /**
+     * Returns a read-only view on the raw data of the field without copying it. The buffer has the byte order of the
+     * frame.
+     *
+     * @param name A field name.
+     * @return The data of the field.
+     */
+    public ByteBuffer getBuffer(String name) {
+        return data(field(name));
+    }
+
+    public byte[] getBytes(String name) {
+        Field field = field(name, DType.INT8, DType.UINT8);
+        byte[] array = new byte[field.size()];
+        data(field).get(array);
+        return array;
+    }
+
+    public short[] getShorts(String name) {
+        Field field = field(name, DType.INT16);
+        short[] array = new short[field.size()];
+        data(field).asShortBuffer().get(array);
+        return array;
+    }
+
+    public int[] getInts(String name) {
+        Field field = field(name, DType.INT32);
+        int[] array = new int[field.size()];
+        data(field).asIntBuffer().get(array);
+        return array;
+    }
+
+    public long[] getLongs(String name) {
+        Field field = field(name, DType.INT64);
+        long[] array = new long[field.size()];
+        data(field).asLongBuffer().get(array);
+        return array;
+    }
+
+    public float[] getFloats(String name) {
+        Field field = field(name, DType.FLOAT32);
+        float[] array = new float[field.size()];
+        data(field).asFloatBuffer().get(array);
+        return array;
+    }
+
+    public double[] getDoubles(String name) {
+        Field field = field(name, DType.FLOAT64);
+        double[] array = new double[field.size()];
+        data(field).asDoubleBuffer().get(array);
+        return array;
+    }
+
+    /**
+     * Decodes a two-dimensional <tt>float64</tt> field, e.g. a matrix of embedding vectors, into an array of rows.
+     *
+     * @param name A field name.
+     * @return The rows of the field.
+     */
+    public double[][] getDoubleMatrix(String name) {
+        Field field = field(name, DType.FLOAT64);
+        if (field.shape.length != 2)
+            throw new IllegalArgumentException("The field " + name + " has " + field.shape.length + " dimensions but a matrix has 2.");
+        DoubleBuffer db = data(field).asDoubleBuffer();
+        double[][] matrix = new double[field.shape[0]][field.shape[1]];
+        for (double[] row : matrix)
+            db.get(row);
+        return matrix;
+    }
+
+    /**
+     * Decodes a two-dimensional <tt>float32</tt> field into an array of rows.
+     *
+     * @param name A field name.
+     * @return The rows of the field.
+     */
+    public float[][] getFloatMatrix(String name) {
+        Field field = field(name, DType.FLOAT32);
+        if (field.shape.length != 2)
+            throw new IllegalArgumentException("The field " + name + " has " + field.shape.length + " dimensions but a matrix has 2.");
+        FloatBuffer fb = data(field).asFloatBuffer();
+        float[][] matrix = new float[field.shape[0]][field.shape[1]];
+        for (float[] row : matrix)
+            fb.get(row);
+        return matrix;
+    }
+
+    private ByteBuffer data(Field field) {
+        ByteBuffer data = buffer.duplicate();
+        data.limit(field.offset + field.size() * field.dtype.getSize());
+        data.position(field.offset);
+        return data.slice().asReadOnlyBuffer().order(buffer.order());
+    }
+
+    private Field field(String name, DType... expectedTypes) {
+        Field field = fields.get(name);
+        if (field == null)
+            throw new IllegalArgumentException("The tensor frame has no field " + name + ". Existing fields: " + fields.keySet());
+        if (expectedTypes.length == 0)
+            return field;
+        for (DType expected : expectedTypes) {
+            if (field.dtype == expected)
+                return field;
+        }
+        throw new IllegalArgumentException("The field " + name + " has the type " + field.dtype + " which is not one of the requested types.");
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("TensorFrame{");
+        fields.forEach((name, field) -> sb.append(name).append(':').append(field.dtype).append(Arrays.toString(field.shape)).append(", "));
+        if (!fields.isEmpty())
+            sb.setLength(sb.length() - 2);
+        return sb.append('}').toString();
+    }
+
+    /**
+     * The data types of tensor frame fields. The codes are the type characters of the Python <tt>struct</tt> module
+     * and of numpy.
+     */
+    public enum DType {
+        INT8('b', 1), UINT8('B', 1), INT16('h', 2), INT32('i', 4), INT64('q', 8), FLOAT32('f', 4), FLOAT64('d', 8);
+
+        private final char code;
+        private final int size;
+
+        DType(char code, int size) {
+            this.code = code;
+            this.size = size;
+        }
+
+        public static DType forCode(byte code) {
+            for (DType dtype : values()) {
+                if (dtype.code == code)
+                    return dtype;
+            }
+            throw new IllegalArgumentException("Unknown tensor frame data type code '" + (char) code + "'.");
+        }
+
+        public char getCode() {
+            return code;
+        }
+
+        /**
+         * @return The size of one element of this type in bytes.
+         */
+        public int getSize() {
+            return size;
+        }
+    }
+
+    private static class Field {
+        private final DType dtype;
+        private final int[] shape;
+        private final int offset;
+
+        private Field(DType dtype, int[] shape, int offset) {
+            this.dtype = dtype;
+            this.shape = shape;
+            this.offset = offset;
+        }
+
+        private int size() {
+            int size = 1;
+            for (int dim : shape)
+                size *= dim;
+            return size;
+        }
+    }
+}
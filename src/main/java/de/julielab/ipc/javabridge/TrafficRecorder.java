@@ -0,0 +1,132 @@
+package de.julielab.ipc.javabridge;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * <p>
+ * Records the requests sent to and the responses received from the external program, together with their timing,
+ * into a compact binary file. The recording can be replayed with a {@link TrafficReplayer}, either against a
+ * {@link StdioBridge} or in place of the external program.
+ * </p>
+ * <p>
+ * The file starts with the 4 byte magic number {@link #MAGIC}, a version byte and a byte that tells whether the
+ * responses are {@link #LINE_RESPONSES lines} or {@link #FRAME_RESPONSES binary frames}. It is followed by the
+ * records. Each record consists of
+ * <ol>
+ *     <li>1 byte: the direction, {@link #REQUEST} or {@link #RESPONSE}</li>
+ *     <li>8 bytes: the nanoseconds since the recording started</li>
+ *     <li>8 bytes: for a request, its ID, i.e. the number of requests recorded before it. For a response, the ID of
+ *     the request it answers or {@link #NO_REQUEST} if it has been received without a request, e.g. by
+ *     {@link StdioBridge#receive()}.</li>
+ *     <li>4 bytes: the length of the payload</li>
+ *     <li>the payload: the request bytes before compression or the messages of the response in the batch format,
+ *     i.e. the number of messages followed by each message as its length and its bytes</li>
+ * </ol>
+ * All numbers are big endian.
+ * </p>
+ * <p>
+ * Since requests are recorded before they are compressed and responses after they have been decompressed, the
+ * recording does not depend on the GZIP and session deflate settings of the bridge.
+ * </p>
+ *
+ * @see Options#setTrafficRecordFile(Path)
+ */
+public class TrafficRecorder implements AutoCloseable {
+    public static final int MAGIC = 0x53544452;
+    public static final byte VERSION = 2;
+    public static final byte LINE_RESPONSES = 'L';
+    public static final byte FRAME_RESPONSES = 'F';
+    public static final byte REQUEST = '>';
+    public static final byte RESPONSE = '<';
+    /**
+     * The request ID of responses that have not been received as the answer to a particular request.
+     */
+    public static final long NO_REQUEST = -1;
+    private final DataOutputStream dos;
+    private final long startTime = System.nanoTime();
+    private long records;
+    private long requests;
+
+    /**
+     * @param file          The file to write the recording to. An existing file is overwritten.
+     * @param lineResponses Whether the external program answers with lines of text instead of binary frames.
+     * @throws IOException If the file cannot be created.
+     */
+    public TrafficRecorder(Path file, boolean lineResponses) throws IOException {
+        dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+        dos.writeInt(MAGIC);
+        dos.writeByte(VERSION);
+        dos.writeByte(lineResponses ? LINE_RESPONSES : FRAME_RESPONSES);
+    }
+
+    /**
+     * @param request The request before compression.
+     * @return The ID of the request to pass to {@link #recordResponse(List, long)} for its response.
+     * @throws IOException If writing the record fails.
+     */
+    public synchronized long recordRequest(byte[] request) throws IOException {
+        long id = requests++;
+        writeHeader(REQUEST, id, request.length);
+        dos.write(request);
+        return id;
+    }
+
+    /**
+     * @param messages  The messages of the response.
+     * @param requestId The ID returned by {@link #recordRequest(byte[])} for the request that this response answers
+     *                  or {@link #NO_REQUEST}.
+     * @throws IOException If writing the record fails.
+     */
+    public synchronized void recordResponse(List<?> messages, long requestId) throws IOException {
+        byte[][] encoded = new byte[messages.size()][];
+        int length = 4;
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = toBytes(messages.get(i));
+            length += 4 + encoded[i].length;
+        }
+        writeHeader(RESPONSE, requestId, length);
+        dos.writeInt(encoded.length);
+        for (byte[] message : encoded) {
+            dos.writeInt(message.length);
+            dos.write(message);
+        }
+    }
+
+    private void writeHeader(byte direction, long requestId, int length) throws IOException {
+        dos.writeByte(direction);
+        dos.writeLong(System.nanoTime() - startTime);
+        dos.writeLong(requestId);
+        dos.writeInt(length);
+        ++records;
+    }
+
+    private static byte[] toBytes(Object message) {
+        if (message instanceof byte[])
+            return (byte[]) message;
+        if (message instanceof PooledBuffer)
+            return ((PooledBuffer) message).toByteArray();
+        return String.valueOf(message).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The number of requests and responses recorded so far.
+     */
+    public synchronized long getRecordCount() {
+        return records;
+    }
+
+    public synchronized void flush() throws IOException {
+        dos.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        dos.close();
+    }
+}
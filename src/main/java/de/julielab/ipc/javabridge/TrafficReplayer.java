@@ -0,0 +1,365 @@
+package de.julielab.ipc.javabridge;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <p>
+ * Replays traffic recorded by a {@link TrafficRecorder} in one of two ways:
+ * <ul>
+ *     <li>{@link #replay(StdioBridge, double, int)} sends the recorded requests to a {@link StdioBridge} at the
+ *     recorded rate or an accelerated rate. This load tests the external program with realistic traffic.</li>
+ *     <li>{@link #serve(InputStream, OutputStream, String, String, boolean, boolean)} stands in for the external program and answers
+ *     requests with the recorded responses. This benchmarks the Java side without running the real external
+ *     program. The {@link #main(String[])} method starts such a stand-in, so it can be used as the external program
+ *     of a bridge:
+ *     <pre>
+ * StdioBridge&lt;byte[]&gt; bridge = new StdioBridge&lt;&gt;(options, "-cp", System.getProperty("java.class.path"),
+ *         TrafficReplayer.class.getName(), "recording.bin", "Ready!", "exit");
+ *     </pre>
+ *     with <tt>java</tt> as the executable.</li>
+ * </ul>
+ * The whole recording is loaded into memory.
+ * </p>
+ * <p>
+ * Responses are matched with their requests by the request IDs of the recording. Responses that have been received
+ * without a request, e.g. by {@link StdioBridge#receive()} after {@link StdioBridge#send(byte[])} or as messages
+ * pushed by the external program, are attributed to the request recorded last before them.
+ * </p>
+ * <p>
+ * Requests are recorded before compression and responses after decompression. Thus, {@link #replay(StdioBridge, double, int)}
+ * works with any compression settings of the bridge. The stand-in must be told the GZIP settings of the bridge, see
+ * {@link #main(String[])}. It does not support {@link Options#setDeflateSessionSentData(boolean)} and
+ * {@link Options#setDeflateSessionReceivedData(boolean)}.
+ * </p>
+ */
+public class TrafficReplayer {
+    public static final String GZIP_SENT_DATA_FLAG = "--gzip-sent-data";
+    public static final String GZIP_RECEIVED_DATA_FLAG = "--gzip-received-data";
+    private final boolean lineResponses;
+    private final List<byte[]> requests = new ArrayList<>();
+    private final List<Long> requestTimes = new ArrayList<>();
+    /**
+     * The responses attributed to each request, in the order of {@link #requests}.
+     */
+    private final List<List<byte[][]>> responses = new ArrayList<>();
+    /**
+     * Whether the response of the request at the same index has been received in an exchange with the request,
+     * e.g. by {@link StdioBridge#sendAndReceive(byte[])}.
+     */
+    private final List<Boolean> exchanged = new ArrayList<>();
+    /**
+     * Responses received before the first request.
+     */
+    private final List<byte[][]> initialResponses = new ArrayList<>();
+
+    /**
+     * @param recording A file written by a {@link TrafficRecorder}.
+     * @throws IOException If the file cannot be read or is not a traffic recording.
+     */
+    public TrafficReplayer(Path recording) throws IOException {
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(recording), 1 << 16))) {
+            if (dis.readInt() != TrafficRecorder.MAGIC)
+                throw new IOException("The file " + recording + " is not a traffic recording.");
+            byte version = dis.readByte();
+            if (version != TrafficRecorder.VERSION)
+                throw new IOException("The traffic recording " + recording + " has the unsupported version " + version + ".");
+            lineResponses = dis.readByte() == TrafficRecorder.LINE_RESPONSES;
+            int direction;
+            while ((direction = dis.read()) != -1) {
+                long time = dis.readLong();
+                long requestId = dis.readLong();
+                byte[] payload = new byte[dis.readInt()];
+                dis.readFully(payload);
+                if (direction == TrafficRecorder.REQUEST) {
+                    requests.add(payload);
+                    requestTimes.add(time);
+                    responses.add(new ArrayList<>(1));
+                    exchanged.add(false);
+                } else {
+                    addResponse(requestId, decodeResponse(payload));
+                }
+            }
+        }
+    }
+
+    private void addResponse(long requestId, byte[][] response) {
+        if (requestId >= 0 && requestId < requests.size()) {
+            responses.get((int) requestId).add(response);
+            exchanged.set((int) requestId, true);
+        } else if (!requests.isEmpty()) {
+            responses.get(requests.size() - 1).add(response);
+        } else {
+            initialResponses.add(response);
+        }
+    }
+
+    private static byte[][] decodeResponse(byte[] payload) {
+        ByteBuffer bb = ByteBuffer.wrap(payload);
+        byte[][] messages = new byte[bb.getInt()][];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = new byte[bb.getInt()];
+            bb.get(messages[i]);
+        }
+        return messages;
+    }
+
+    public int getRequestCount() {
+        return requests.size();
+    }
+
+    /**
+     * Sends the recorded requests with {@link StdioBridge#sendAndReceive(byte[], java.util.function.Consumer)}.
+     * Requests whose responses have not been received in an exchange are sent with {@link StdioBridge#send(byte[])}
+     * and followed by one {@link StdioBridge#receive(java.util.function.Consumer)} per recorded response. The
+     * requests are sent on schedule, regardless of how long earlier requests take, as long as there are free
+     * sending threads. The latency of a request is measured from its scheduled time, so delays caused by an
+     * overloaded external program are included.
+     *
+     * @param bridge      A started bridge.
+     * @param speedFactor The factor by which the recorded rate is accelerated, e.g. 1 for the original rate and 2
+     *                    for twice the rate. <tt>Double.POSITIVE_INFINITY</tt> sends all requests without delays.
+     * @param concurrency The number of threads sending requests.
+     * @return The latency statistics of the replay.
+     * @throws InterruptedException If the replay is interrupted.
+     */
+    public ReplayResult replay(StdioBridge<?> bridge, double speedFactor, int concurrency) throws InterruptedException {
+        LatencyTracker latencies = new LatencyTracker(Math.max(1, requests.size()));
+        AtomicLong failures = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        long start = System.nanoTime();
+        try {
+            long firstRequestTime = requestTimes.isEmpty() ? 0 : requestTimes.get(0);
+            for (int i = 0; i < requests.size(); i++) {
+                byte[] request = requests.get(i);
+                boolean exchange = exchanged.get(i);
+                int receives = responses.get(i).size();
+                long due = start + (long) ((requestTimes.get(i) - firstRequestTime) / speedFactor);
+                long delay;
+                while ((delay = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(delay);
+                    if (Thread.interrupted())
+                        throw new InterruptedException();
+                }
+                executor.execute(() -> {
+                    try {
+                        if (exchange) {
+                            bridge.sendAndReceive(request, PooledBuffer::releaseIfPooled);
+                        } else {
+                            bridge.send(request);
+                            for (int j = 0; j < receives; j++)
+                                bridge.receive(PooledBuffer::releaseIfPooled);
+                        }
+                        latencies.record(System.nanoTime() - due);
+                    } catch (InterruptedException e) {
+                        failures.incrementAndGet();
+                        Thread.currentThread().interrupt();
+                    } catch (RuntimeException e) {
+                        failures.incrementAndGet();
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        return new ReplayResult(latencies, failures.get(), System.nanoTime() - start);
+    }
+
+    /**
+     * <p>
+     * Acts as the external program: reads framed requests, including chunked and gzipped ones, from <tt>in</tt>
+     * and writes the recorded responses to <tt>out</tt>. A request is answered with the responses recorded for an
+     * identical request; if there are several identical requests in the recording, their responses are used in
+     * turn. Unknown requests are answered with the responses of the recorded requests in their original order.
+     * Responses recorded before the first request are written right after the ready signal.
+     * </p>
+     *
+     * @param in                The input stream of requests.
+     * @param out               The output stream for the responses.
+     * @param readySignal       The ready signal to write before reading the first request, may be null.
+     * @param terminationSignal The request that ends serving, may be null.
+     * @param gzipRequests      Whether the requests are GZIP compressed, see {@link Options#setGzipSentData(boolean)}.
+     * @param gzipResponses     Whether the responses are to be GZIP compressed, see
+     *                          {@link Options#setGzipReceivedData(boolean)}.
+     * @throws IOException              If reading or writing fails.
+     * @throws IllegalArgumentException If GZIP compressed responses are requested for a recording of line responses.
+     */
+    public void serve(InputStream in, OutputStream out, String readySignal, String terminationSignal, boolean gzipRequests, boolean gzipResponses) throws IOException {
+        if (gzipResponses && lineResponses)
+            throw new IllegalArgumentException("Line responses can't be GZIP compressed, only binary responses.");
+        Map<ByteBuffer, List<List<byte[][]>>> responsesByRequest = new HashMap<>();
+        for (int i = 0; i < requests.size(); i++)
+            responsesByRequest.computeIfAbsent(ByteBuffer.wrap(requests.get(i)), k -> new ArrayList<>()).add(responses.get(i));
+        Map<ByteBuffer, Integer> cursors = new HashMap<>();
+        int sequentialCursor = 0;
+        ByteBuffer termination = terminationSignal != null ? ByteBuffer.wrap(terminationSignal.getBytes(StandardCharsets.UTF_8)) : null;
+
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        if (readySignal != null) {
+            dos.write((readySignal + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+            dos.flush();
+        }
+        writeResponses(dos, initialResponses, gzipResponses);
+        byte[] request;
+        while ((request = readRequest(dis, gzipRequests)) != null) {
+            ByteBuffer key = ByteBuffer.wrap(request);
+            if (key.equals(termination))
+                break;
+            List<List<byte[][]>> candidates = responsesByRequest.get(key);
+            List<byte[][]> response;
+            if (candidates != null) {
+                int cursor = cursors.getOrDefault(key, 0);
+                response = candidates.get(cursor % candidates.size());
+                cursors.put(key, cursor + 1);
+            } else if (!responses.isEmpty()) {
+                System.err.println("No response has been recorded for a request of " + request.length + " bytes, answering with the responses of the next recorded request.");
+                response = responses.get(sequentialCursor++ % responses.size());
+            } else {
+                continue;
+            }
+            writeResponses(dos, response, gzipResponses);
+        }
+        dos.flush();
+    }
+
+    private void writeResponses(DataOutputStream dos, List<byte[][]> responses, boolean gzip) throws IOException {
+        for (byte[][] response : responses) {
+            for (byte[] message : response) {
+                if (gzip)
+                    message = gzip(message);
+                if (lineResponses) {
+                    dos.write(message);
+                    dos.write(System.lineSeparator().getBytes(StandardCharsets.UTF_8));
+                } else {
+                    dos.writeInt(message.length);
+                    dos.write(message);
+                }
+            }
+        }
+        dos.flush();
+    }
+
+    private static byte[] gzip(byte[] message) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (OutputStream gos = new GZIPOutputStream(baos)) {
+            gos.write(message);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * @return The next request, gunzipped if <tt>gzip</tt> is set, or null if the input has ended.
+     */
+    private static byte[] readRequest(DataInputStream dis, boolean gzip) throws IOException {
+        int length;
+        try {
+            length = dis.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        byte[] request;
+        if (length == ChunkedOutputStream.CHUNKED_MESSAGE) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            int chunkLength;
+            while ((chunkLength = dis.readInt()) != 0) {
+                byte[] chunk = new byte[chunkLength];
+                dis.readFully(chunk);
+                baos.write(chunk);
+            }
+            request = baos.toByteArray();
+        } else {
+            request = new byte[length];
+            dis.readFully(request);
+        }
+        if (gzip) {
+            try (InputStream gis = new GZIPInputStream(new ByteArrayInputStream(request))) {
+                request = gis.readAllBytes();
+            }
+        }
+        return request;
+    }
+
+    /**
+     * Stands in for the external program, see {@link #serve(InputStream, OutputStream, String, String, boolean, boolean)}.
+     * The flags <tt>--gzip-sent-data</tt> and <tt>--gzip-received-data</tt> must be given if the bridge enables
+     * {@link Options#setGzipSentData(boolean)} and {@link Options#setGzipReceivedData(boolean)}, respectively.
+     *
+     * @param args The recording file, optionally followed by the ready signal and the termination signal, and the
+     *             GZIP flags.
+     * @throws IOException If the recording cannot be read or communication fails.
+     */
+    public static void main(String[] args) throws IOException {
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        boolean gzipRequests = arguments.remove(GZIP_SENT_DATA_FLAG);
+        boolean gzipResponses = arguments.remove(GZIP_RECEIVED_DATA_FLAG);
+        if (arguments.isEmpty() || arguments.size() > 3) {
+            System.err.println("Usage: " + TrafficReplayer.class.getName() + " <recording file> [ready signal] [termination signal] [" + GZIP_SENT_DATA_FLAG + "] [" + GZIP_RECEIVED_DATA_FLAG + "]");
+            System.exit(1);
+        }
+        TrafficReplayer replayer = new TrafficReplayer(Paths.get(arguments.get(0)));
+        replayer.serve(new FileInputStream(FileDescriptor.in), new FileOutputStream(FileDescriptor.out), arguments.size() > 1 ? arguments.get(1) : null,
+                arguments.size() > 2 ? arguments.get(2) : null, gzipRequests, gzipResponses);
+    }
+
+    /**
+     * The outcome of a {@link #replay(StdioBridge, double, int)}.
+     */
+    public static class ReplayResult {
+        private final LatencyTracker latencies;
+        private final long failures;
+        private final long elapsedNanos;
+
+        private ReplayResult(LatencyTracker latencies, long failures, long elapsedNanos) {
+            this.latencies = latencies;
+            this.failures = failures;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * @return The number of requests that have been answered.
+         */
+        public int getCompletedCount() {
+            return latencies.getSampleCount();
+        }
+
+        /**
+         * @return The number of requests that failed or were interrupted.
+         */
+        public long getFailureCount() {
+            return failures;
+        }
+
+        public long getElapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        }
+
+        /**
+         * @param percentile The requested percentile between 0 and 1, e.g. 0.99.
+         * @return The latency percentile in milliseconds or -1 if no request has been answered.
+         */
+        public double getLatencyPercentileMillis(double percentile) {
+            long nanos = latencies.getPercentile(percentile);
+            return nanos < 0 ? -1 : nanos / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return "ReplayResult{completed=" + getCompletedCount() + ", failures=" + failures + ", elapsed=" + getElapsedMillis() + "ms, p50=" + getLatencyPercentileMillis(0.5) + "ms, p99=" + getLatencyPercentileMillis(0.99) + "ms}";
+        }
+    }
+}
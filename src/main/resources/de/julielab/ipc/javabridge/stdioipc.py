@@ -0,0 +1,373 @@
+'''
+Reference implementation of the external program side of the java-stdio-ipc protocol.
+
+Each message is framed by a 4 byte big endian integer holding the length of the message, followed by the
+message bytes. This holds for messages sent by the Java side and for binary responses. String responses are
+sent as lines instead.
+
+The module implements
+ - buffered framed reads into a reused buffer,
+ - chunked messages of unknown length as sent by StdioBridge#send(InputStream, long): the length -1, followed by
+   chunks of a 4 byte length and the chunk bytes, terminated by a chunk of length 0,
+ - the batch format of StdioBridge#sendAndReceiveBatched: a 4 byte count, followed by each request or response
+   as a 4 byte length and its bytes,
+ - zero-copy framed writes of bytes-like objects, e.g. memoryviews or numpy arrays,
+ - the ready signal and the termination signal handshakes,
+ - the self-describing multi-field TensorFrame response format,
+ - multiplexed logical channels (Options#setMultiplexed), where each message starts with the 4 byte channel ID,
+ - session deflate compression (Options#setDeflateSessionSentData and Options#setDeflateSessionReceivedData): all
+   frames in one direction form a single raw deflate stream with a sync flush at the end of each frame, so later
+   frames are compressed with the history of the earlier ones. The length header and the ready signal stay
+   uncompressed,
+ - the fork server mode (Options#setForkServer), where a preloaded process forks the workers on request.
+
+A minimal worker looks like this:
+
+    import stdioipc
+    stdioipc.serve(lambda request: bytes(request)[::-1], ready_signal='Ready!')
+
+The module is shipped within the java-stdio-ipc jar next to the Java classes. Copy it next to the external program
+or add its directory to the Python path.
+'''
+import io
+import os
+import signal
+import sys
+import zlib
+from array import array
+from struct import Struct
+
+_INT = Struct('>i')
+_CHUNKED_MESSAGE = -1
+
+
+class FrameReader:
+    '''
+    Reads length-prefixed frames from a binary stream. The frames are read into a single buffer that is reused
+    and only grown when a larger frame arrives. The returned memoryviews are only valid until the next call to
+    read_frame().
+
+    With deflate_session=True, each frame is decompressed with a decompressor that lasts for the whole session.
+    '''
+
+    def __init__(self, stream=None, buffer_size=1 << 16, deflate_session=False):
+        if stream is None:
+            stream = getattr(sys.stdin.buffer, 'raw', sys.stdin.buffer)
+        self._stream = io.BufferedReader(stream, buffer_size) if not isinstance(stream, io.BufferedReader) else stream
+        self._length = bytearray(4)
+        self._buffer = bytearray(buffer_size)
+        self._inflater = zlib.decompressobj(-zlib.MAX_WBITS) if deflate_session else None
+
+    def _read_fully(self, view):
+        read = 0
+        while read < len(view):
+            n = self._stream.readinto(view[read:])
+            if not n:
+                return False
+            read += n
+        return True
+
+    def _read_length(self):
+        if not self._read_fully(memoryview(self._length)):
+            return None
+        return _INT.unpack(self._length)[0]
+
+    def _ensure_capacity(self, capacity, keep=0):
+        if capacity > len(self._buffer):
+            grown = bytearray(max(capacity, 2 * len(self._buffer)))
+            grown[:keep] = memoryview(self._buffer)[:keep]
+            self._buffer = grown
+
+    def read_frame(self):
+        '''
+        Reads the next frame. Chunked messages are reassembled into a single frame.
+
+        :return: A memoryview of the next frame or None if the stream has been closed.
+        '''
+        length = self._read_length()
+        if length is None:
+            return None
+        if length == _CHUNKED_MESSAGE:
+            view = self._read_chunked()
+        else:
+            self._ensure_capacity(length)
+            view = memoryview(self._buffer)[:length]
+            if not self._read_fully(view):
+                return None
+        if view is not None and self._inflater is not None:
+            view = memoryview(self._inflater.decompress(view))
+        return view
+
+    def _read_chunked(self):
+        size = 0
+        while True:
+            length = self._read_length()
+            if length is None:
+                return None
+            if length == 0:
+                return memoryview(self._buffer)[:size]
+            self._ensure_capacity(size + length, size)
+            if not self._read_fully(memoryview(self._buffer)[size:size + length]):
+                return None
+            size += length
+
+    def __iter__(self):
+        while True:
+            frame = self.read_frame()
+            if frame is None:
+                return
+            yield frame
+
+
+class FrameWriter:
+    '''
+    Writes length-prefixed frames to a binary stream. Bytes-like payloads are written as they are, without
+    concatenating them with the length header first. Call flush() after a complete response has been written,
+    otherwise it might stay in the buffer and the Java side waits forever.
+
+    With deflate_session=True, each frame is compressed with a compressor that lasts for the whole session and ends
+    with a sync flush.
+    '''
+
+    def __init__(self, stream=None, buffer_size=1 << 16, deflate_session=False):
+        if stream is None:
+            stream = getattr(sys.stdout.buffer, 'raw', sys.stdout.buffer)
+        self._stream = io.BufferedWriter(stream, buffer_size) if not isinstance(stream, io.BufferedWriter) else stream
+        self._length = bytearray(4)
+        self._deflater = zlib.compressobj(wbits=-zlib.MAX_WBITS) if deflate_session else None
+
+    def _emit(self, views):
+        '''
+        Writes the given byte views as the payload of a single frame, compressing them if required.
+        '''
+        if self._deflater is not None:
+            views = [self._deflater.compress(view) for view in views]
+            views.append(self._deflater.flush(zlib.Z_SYNC_FLUSH))
+        _INT.pack_into(self._length, 0, sum(len(v) for v in views))
+        self._stream.write(self._length)
+        for view in views:
+            self._stream.write(view)
+
+    def write_frame(self, payload):
+        self._emit([memoryview(payload).cast('B')])
+
+    def write_frames(self, parts):
+        '''
+        Writes the given bytes-like objects as the parts of a single frame, e.g. the result of encode_tensor_frame().
+        '''
+        self._emit([memoryview(p).cast('B') for p in parts])
+
+    def write_channel_frame(self, channel, payload):
+        '''
+        Writes a response on a logical channel of a multiplexed worker.
+        '''
+        self._emit([_INT.pack(channel), memoryview(payload).cast('B')])
+
+    def write_batch(self, payloads):
+        '''
+        Writes the responses of a batch request as a single frame in the batch format.
+        '''
+        views = [_INT.pack(len(payloads))]
+        for payload in payloads:
+            view = memoryview(payload).cast('B')
+            views.append(_INT.pack(len(view)))
+            views.append(view)
+        self._emit(views)
+
+    def write_line(self, line):
+        '''
+        Writes a string response as a single line for String-typed bridges.
+        '''
+        self._stream.write(line.encode('utf-8'))
+        self._stream.write(b'\n')
+
+    def flush(self):
+        self._stream.flush()
+
+
+def decode_batch(frame):
+    '''
+    Splits a batch request into its requests.
+
+    :param frame: A frame in the batch format.
+    :return: A list of memoryviews on the requests in the batch.
+    '''
+    view = memoryview(frame)
+    count = _INT.unpack_from(view, 0)[0]
+    pos = 4
+    requests = []
+    for _ in range(count):
+        length = _INT.unpack_from(view, pos)[0]
+        pos += 4
+        requests.append(view[pos:pos + length])
+        pos += length
+    return requests
+
+
+def encode_tensor_frame(fields):
+    '''
+    Encodes several named arrays into a single response in the TensorFrame format that is decoded lazily on the
+    Java side by de.julielab.ipc.javabridge.TensorFrame. The data of each field is aligned to 8 bytes.
+
+    :param fields: A dict from field names to numpy arrays or to tuples (type code, shape, values) where the type code
+    is one of b, B, h, i, q, f, d and values is a flat sequence or bytes-like object in row-major order.
+    :return: A list of bytes-like objects that, written one after the other, make up the frame. Pass it to
+    FrameWriter.write_frames() to write it without copying the field data.
+    '''
+    parts = []
+    header = bytearray(b'<' if sys.byteorder == 'little' else b'>')
+    order = header.decode('ascii')
+    header += Struct(order + 'i').pack(len(fields))
+    offset_positions = []
+    for name, field in fields.items():
+        if isinstance(field, tuple):
+            code, shape, values = field
+            data = memoryview(values if not isinstance(values, (list, tuple)) else array(code, values)).cast('B')
+        else:
+            code, shape = field.dtype.char, field.shape
+            data = memoryview(field if field.flags['C_CONTIGUOUS'] else field.copy()).cast('B')
+        if code == 'l':
+            code = 'q'
+        encoded_name = name.encode('utf-8')
+        header += Struct(order + 'H').pack(len(encoded_name)) + encoded_name
+        header += Struct(order + 'cB' + 'i' * len(shape)).pack(code.encode('ascii'), len(shape), *shape)
+        offset_positions.append(len(header))
+        header += bytes(4)
+        parts.append(data)
+    offset = len(header)
+    result = [header]
+    for position, data in zip(offset_positions, parts):
+        padding = -offset % 8
+        if padding:
+            result.append(bytes(padding))
+            offset += padding
+        Struct(order + 'i').pack_into(header, position, offset)
+        result.append(data)
+        offset += len(data)
+    return result
+
+
+def send_ready_signal(signal, writer=None):
+    '''
+    Sends the ready signal the Java side waits for when Options#setExternalProgramReadySignal is set.
+    '''
+    if writer is None:
+        sys.stdout.write(signal + '\n')
+        sys.stdout.flush()
+    else:
+        writer.write_line(signal)
+        writer.flush()
+
+
+def serve(handler, ready_signal=None, termination_signal='exit', batch=False, binary=True, reader=None, writer=None,
+          deflate_requests=False, deflate_responses=False):
+    '''
+    Runs the request loop of a worker until the termination signal or the end of the input stream is received.
+
+    :param handler: A function receiving a request as a memoryview. In batch mode, it receives the list of requests
+    of a batch and must return a list of responses. Binary responses are bytes-like objects, string responses are str.
+    :param ready_signal: The ready signal to send before the first request is read, if any.
+    :param termination_signal: The message that ends the loop, if any.
+    :param batch: Whether the requests are batches sent by StdioBridge#sendAndReceiveBatched.
+    :param binary: Whether the responses are framed binary messages or lines of text.
+    :param deflate_requests: Whether the requests are compressed, see Options#setDeflateSessionSentData.
+    :param deflate_responses: Whether the responses are compressed, see Options#setDeflateSessionReceivedData.
+    '''
+    reader = reader if reader is not None else FrameReader(deflate_session=deflate_requests)
+    writer = writer if writer is not None else FrameWriter(deflate_session=deflate_responses)
+    termination = termination_signal.encode('utf-8') if termination_signal is not None else None
+    if ready_signal is not None:
+        send_ready_signal(ready_signal, writer)
+    for frame in reader:
+        if termination is not None and frame == termination:
+            break
+        if batch:
+            responses = handler(decode_batch(frame))
+            writer.write_batch(responses)
+        else:
+            response = handler(frame)
+            if binary:
+                writer.write_frame(response.encode('utf-8') if isinstance(response, str) else response)
+            else:
+                writer.write_line(response)
+        writer.flush()
+    writer.flush()
+
+
+def serve_channels(handlers, ready_signal=None, termination_signal='exit', reader=None, writer=None):
+    '''
+    Runs the request loop of a multiplexed worker that hosts several logical endpoints, e.g. several models sharing
+    the memory of one process. Each request is dispatched to the handler of its channel and the response is sent
+    back on the same channel.
+
+    :param handlers: A dict from channel IDs to functions receiving a request as a memoryview and returning a
+    bytes-like or str response. Requests on other channels are answered with an empty response.
+    :param ready_signal: The ready signal to send before the first request is read, if any.
+    :param termination_signal: The message that ends the loop, if any. It is sent without a channel ID.
+    '''
+    reader = reader if reader is not None else FrameReader()
+    writer = writer if writer is not None else FrameWriter()
+    termination = termination_signal.encode('utf-8') if termination_signal is not None else None
+    if ready_signal is not None:
+        send_ready_signal(ready_signal, writer)
+    for frame in reader:
+        if termination is not None and frame == termination:
+            break
+        channel = _INT.unpack_from(frame, 0)[0]
+        handler = handlers.get(channel)
+        if handler is None:
+            # Answer anyway, otherwise the caller would wait forever
+            sys.stderr.write('No handler for channel %d, answering with an empty response\n' % channel)
+            sys.stderr.flush()
+            response = b''
+        else:
+            response = handler(frame[4:])
+        writer.write_channel_frame(channel, response.encode('utf-8') if isinstance(response, str) else response)
+        writer.flush()
+    writer.flush()
+
+
+def fork_server(ready_signal=None, termination_signal='exit'):
+    '''
+    Runs the fork server of Options#setForkServer. Call it after the expensive imports and model loading, followed
+    by the usual request loop, e.g.
+
+        model = load_model()
+        stdioipc.fork_server(ready_signal='Ready!')
+        stdioipc.serve(model.predict, ready_signal='Ready!')
+
+    Each control request holds the paths of the named pipes for the standard input and output of a new worker,
+    separated by a line break. The server forks, answers with the process ID of the child and waits for the next
+    control request. The function returns only in the children, with their standard input and output connected to
+    the named pipes. The server exits on the termination signal or at the end of the control input. No threads must
+    be running when a worker is forked.
+
+    :param ready_signal: The ready signal to send once the server accepts control requests, if any.
+    :param termination_signal: The control request that ends the server, if any.
+    '''
+    # Closing the streams of the server must not close the standard input and output the workers use afterwards
+    reader = FrameReader(io.FileIO(0, 'rb', closefd=False))
+    writer = FrameWriter(io.FileIO(1, 'wb', closefd=False))
+    termination = termination_signal.encode('utf-8') if termination_signal is not None else None
+    # The children are not waited for, let the kernel reap them
+    signal.signal(signal.SIGCHLD, signal.SIG_IGN)
+    if ready_signal is not None:
+        send_ready_signal(ready_signal, writer)
+    for frame in reader:
+        if termination is not None and frame == termination:
+            break
+        request_pipe, response_pipe = bytes(frame).decode('utf-8').split('\n')
+        sys.stdout.flush()
+        sys.stderr.flush()
+        pid = os.fork()
+        if pid == 0:
+            signal.signal(signal.SIGCHLD, signal.SIG_DFL)
+            # Opening a named pipe blocks until the bridge opens the other side, which it does in the same order
+            for path, flags, fd in ((request_pipe, os.O_RDONLY, 0), (response_pipe, os.O_WRONLY, 1)):
+                opened = os.open(path, flags)
+                os.dup2(opened, fd)
+                os.close(opened)
+            return
+        writer.write_frame(str(pid).encode('ascii'))
+        writer.flush()
+    sys.exit(0)
@@ -0,0 +1,76 @@
+package de.julielab.ipc.javabridge;
+
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests the additive increase and multiplicative decrease of the in-flight limit with synthetic round trip times.
+ */
+public class AdaptiveInFlightLimitTest {
+    private static final long BASELINE_RTT = 1_000_000;
+
+    @Test
+    public void additiveIncrease() {
+        AdaptiveInFlightLimit limit = new AdaptiveInFlightLimit(8, 2);
+        assertThat(limit.getLimit()).isEqualTo(1);
+        int previous = limit.getLimit();
+        for (int i = 0; i < 6; i++) {
+            int current = limit.onSample(BASELINE_RTT, previous);
+            // The limit grows by about one per round trip, never in larger steps
+            assertThat(current).isBetween(previous, previous + 1);
+            previous = current;
+        }
+        assertThat(previous).isGreaterThanOrEqualTo(3);
+    }
+
+    @Test
+    public void noIncreaseWhenLimitIsNotUsed() {
+        AdaptiveInFlightLimit limit = new AdaptiveInFlightLimit(8, 2);
+        for (int i = 0; i < 100; i++)
+            limit.onSample(BASELINE_RTT, 0);
+        assertThat(limit.getLimit()).isEqualTo(1);
+    }
+
+    @Test
+    public void multiplicativeDecreaseOnLatency() {
+        AdaptiveInFlightLimit limit = new AdaptiveInFlightLimit(20, 2);
+        raise(limit, 20);
+        // Within the tolerance, the limit stays at its maximum
+        assertThat(limit.onSample(BASELINE_RTT * 3 / 2, 20)).isEqualTo(20);
+        assertThat(limit.onSample(BASELINE_RTT * 3, 20)).isEqualTo(18);
+        assertThat(limit.onSample(BASELINE_RTT * 3, 20)).isEqualTo(16);
+    }
+
+    @Test
+    public void multiplicativeDecreaseOnErrors() {
+        AdaptiveInFlightLimit limit = new AdaptiveInFlightLimit(20, 2);
+        raise(limit, 20);
+        assertThat(limit.onError()).isEqualTo(18);
+        assertThat(limit.onError()).isEqualTo(16);
+    }
+
+    @Test
+    public void limitIsClamped() {
+        AdaptiveInFlightLimit limit = new AdaptiveInFlightLimit(4, 2);
+        for (int i = 0; i < 1000; i++)
+            limit.onSample(BASELINE_RTT, 4);
+        assertThat(limit.getLimit()).isEqualTo(4);
+        for (int i = 0; i < 100; i++) {
+            limit.onSample(BASELINE_RTT * 10, 4);
+            limit.onError();
+        }
+        assertThat(limit.getLimit()).isEqualTo(1);
+        // Recovery starts from the minimum again
+        assertThat(limit.onSample(BASELINE_RTT, 1)).isEqualTo(2);
+    }
+
+    /**
+     * Feeds round trip times at the baseline with the limit fully used until the limit reaches <tt>target</tt>.
+     */
+    private void raise(AdaptiveInFlightLimit limit, int target) {
+        for (int i = 0; i < 10_000 && limit.getLimit() < target; i++)
+            limit.onSample(BASELINE_RTT, limit.getLimit());
+        assertThat(limit.getLimit()).isEqualTo(target);
+    }
+}
@@ -0,0 +1,75 @@
+package de.julielab.ipc.javabridge;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+/**
+ * Tests the division of cores among workers and the command line that applies the CPU affinity, the nice level
+ * and the environment variables to the external program.
+ */
+public class CpuAffinityTest {
+    @Test
+    public void unevenCoreCounts() {
+        assertThat(CpuAffinity.sliceForWorker(0, 3, 0, 8)).isEqualTo("0-1");
+        assertThat(CpuAffinity.sliceForWorker(1, 3, 0, 8)).isEqualTo("2-4");
+        assertThat(CpuAffinity.sliceForWorker(2, 3, 0, 8)).isEqualTo("5-7");
+        // Cores below the first CPU are left to the JVM
+        assertThat(CpuAffinity.sliceForWorker(0, 2, 2, 5)).isEqualTo("2-3");
+        assertThat(CpuAffinity.sliceForWorker(1, 2, 2, 5)).isEqualTo("4-6");
+    }
+
+    @Test
+    public void eachCoreIsAssignedOnce() {
+        for (int numCpus = 1; numCpus <= 16; numCpus++) {
+            for (int workerCount = 1; workerCount <= numCpus; workerCount++) {
+                List<Integer> cores = new ArrayList<>();
+                for (int i = 0; i < workerCount; i++) {
+                    String[] range = CpuAffinity.sliceForWorker(i, workerCount, 0, numCpus).split("-");
+                    int from = Integer.parseInt(range[0]);
+                    int to = Integer.parseInt(range[range.length - 1]);
+                    for (int cpu = from; cpu <= to; cpu++)
+                        cores.add(cpu);
+                }
+                assertThat(cores).as("%d workers on %d cores", workerCount, numCpus).hasSize(numCpus).doesNotHaveDuplicates();
+            }
+        }
+    }
+
+    @Test
+    public void moreWorkersThanCores() {
+        List<String> slices = new ArrayList<>();
+        for (int i = 0; i < 6; i++)
+            slices.add(CpuAffinity.sliceForWorker(i, 6, 1, 4));
+        assertThat(slices).containsExactly("1", "2", "3", "4", "1", "2");
+    }
+
+    @Test
+    public void invalidArguments() {
+        assertThatIllegalArgumentException().isThrownBy(() -> CpuAffinity.sliceForWorker(2, 2, 0, 4));
+        assertThatIllegalArgumentException().isThrownBy(() -> CpuAffinity.sliceForWorker(-1, 2, 0, 4));
+        assertThatIllegalArgumentException().isThrownBy(() -> CpuAffinity.sliceForWorker(0, 2, 0, 0));
+    }
+
+    @Test
+    public void commandLine() {
+        Options<String> options = new Options<>(String.class);
+        options.setExecutable("python");
+        options.setCpuAffinity(CpuAffinity.sliceForWorker(1, 2, 0, 8));
+        options.setNiceLevel(10);
+        options.setMathLibraryThreads(2);
+        options.setEnvironmentVariable("MODEL", "small");
+        ProcessBuilder builder = new StdioBridge<>(options, "-u", "worker.py").createProcessBuilder();
+        assertThat(builder.command()).containsExactly("taskset", "-c", "4-7", "nice", "-n", "10", "python", "-u", "worker.py");
+        assertThat(builder.environment()).containsEntry("OMP_NUM_THREADS", "2").containsEntry("MODEL", "small");
+
+        Options<String> plain = new Options<>(String.class);
+        plain.setExecutable("python");
+        plain.setCpuAffinity(0, 2);
+        assertThat(new StdioBridge<>(plain, "worker.py").createProcessBuilder().command()).containsExactly("taskset", "-c", "0,2", "python", "worker.py");
+    }
+}
@@ -0,0 +1,75 @@
+package de.julielab.ipc.javabridge;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static de.julielab.ipc.javabridge.Priority.BULK;
+import static de.julielab.ipc.javabridge.Priority.INTERACTIVE;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests the order in which waiting callers are admitted by the weighted round robin of the scheduler.
+ */
+public class ExchangeSchedulerTest {
+    @Test
+    public void dispatchOrderFollowsWeights() throws Exception {
+        List<Priority> grants = dispatch(3, 1, 6, 6);
+        assertThat(grants).containsExactly(INTERACTIVE, INTERACTIVE, BULK, INTERACTIVE, INTERACTIVE, INTERACTIVE, BULK, INTERACTIVE, BULK, BULK, BULK, BULK);
+    }
+
+    @Test
+    public void bulkIsNotStarved() throws Exception {
+        List<Priority> grants = dispatch(8, 1, 40, 5);
+        assertThat(grants).hasSize(45);
+        // One bulk caller is admitted per eight interactive callers while both queues are non-empty
+        for (int i = 0; i < 45; i += 9)
+            assertThat(grants.subList(i, i + 9)).containsOnlyOnce(BULK);
+    }
+
+    /**
+     * Queues the given number of callers per priority while the only permit is taken, then releases the permit once
+     * per caller and returns the priorities in the order the callers were admitted.
+     */
+    private List<Priority> dispatch(int interactiveWeight, int bulkWeight, int interactiveCallers, int bulkCallers) throws Exception {
+        Map<Priority, Integer> weights = new EnumMap<>(Priority.class);
+        weights.put(INTERACTIVE, interactiveWeight);
+        weights.put(BULK, bulkWeight);
+        ExchangeScheduler scheduler = new ExchangeScheduler(1, weights);
+        scheduler.acquire(INTERACTIVE);
+
+        BlockingQueue<Priority> granted = new LinkedBlockingQueue<>();
+        List<Thread> callers = new ArrayList<>();
+        for (int i = 0; i < interactiveCallers + bulkCallers; i++) {
+            Priority priority = i < interactiveCallers ? INTERACTIVE : BULK;
+            Thread caller = new Thread(() -> {
+                try {
+                    scheduler.acquire(priority);
+                    granted.add(priority);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            caller.start();
+            callers.add(caller);
+        }
+        while (scheduler.getQueueLength(INTERACTIVE) < interactiveCallers || scheduler.getQueueLength(BULK) < bulkCallers)
+            Thread.sleep(5);
+
+        List<Priority> grants = new ArrayList<>();
+        for (int i = 0; i < callers.size(); i++) {
+            // Each admitted caller keeps its permit so exactly one caller is admitted per release
+            scheduler.release();
+            grants.add(granted.poll(10, TimeUnit.SECONDS));
+        }
+        for (Thread caller : callers)
+            caller.join();
+        return grants;
+    }
+}
@@ -0,0 +1,39 @@
+package de.julielab.ipc.javabridge;
+
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests that the instances of the external program can be forked from a preloaded fork server.
+ */
+public class ForkServerTest {
+    @Test
+    public void forkedWorkers() throws Exception {
+        Options<byte[]> options = new Options<>(byte[].class);
+        options.setExecutable("python");
+        options.setExternalProgramTerminationSignal("exit");
+        options.setExternalProgramReadySignal("Ready!");
+        options.setForkServer(true);
+        StdioBridge<byte[]> bridge = new StdioBridge<>(options, "-u", "src/test/resources/python/reference/forkServer.py");
+        bridge.start();
+
+        String[] first = new String(bridge.sendAndReceiveOne("first".getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8).split(" ");
+        assertThat(first[2]).isEqualTo("first");
+        assertThat(first[1]).isNotEqualTo(first[0]);
+        // The replacement is forked from the same fork server
+        bridge.recycle();
+        String[] second = new String(bridge.sendAndReceiveOne("second".getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8).split(" ");
+        assertThat(second[2]).isEqualTo("second");
+        assertThat(second[0]).isEqualTo(first[0]);
+        assertThat(second[1]).isNotEqualTo(first[1]);
+        // The error output of the forked workers is read from the fork server
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!bridge.getRecentErrorStreamLines().contains("Forked worker " + second[1]) && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertThat(bridge.getRecentErrorStreamLines()).contains("Forked worker " + first[1], "Forked worker " + second[1]);
+        bridge.stop();
+    }
+}
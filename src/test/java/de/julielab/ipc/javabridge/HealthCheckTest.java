@@ -0,0 +1,99 @@
+package de.julielab.ipc.javabridge;
+
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests the health check pings sent to idle external programs and the recycling of external programs whose latency
+ * or memory consumption exceeds the configured limits.
+ */
+public class HealthCheckTest {
+    @Test
+    public void idlePings() throws Exception {
+        Options<String> options = createOptions();
+        options.setHealthCheckIntervalMillis(50);
+        options.setHealthCheckMessage("ping");
+        options.setRecycleAfterRequests(3);
+        StdioBridge<String> bridge = new StdioBridge<>(options, "-u", "src/test/resources/python/pidWithReadySignal.py");
+        bridge.start();
+        Thread.sleep(1000);
+        // Only the pings have been exchanged so far
+        assertThat(bridge.getLatencyPercentileMillis(0.5)).isGreaterThanOrEqualTo(0);
+        // The pings don't count towards the recycling policy
+        String pid = pid(bridge, "request");
+        assertThat(pid(bridge, "request")).isEqualTo(pid);
+        bridge.stop();
+    }
+
+    @Test
+    public void idlePingsReleasePooledBuffers() throws Exception {
+        Options<PooledBuffer> options = new Options<>(PooledBuffer.class);
+        options.setExecutable("python");
+        options.setExternalProgramTerminationSignal("exit");
+        options.setExternalProgramReadySignal("Ready!");
+        options.setHealthCheckIntervalMillis(50);
+        options.setHealthCheckMessage("ping");
+        DirectBufferPool pool = new DirectBufferPool();
+        options.setDirectBufferPool(pool);
+        StdioBridge<PooledBuffer> bridge = new StdioBridge<>(options, "-u", "src/test/resources/python/reference/echoWorker.py");
+        bridge.start();
+        Thread.sleep(500);
+        assertThat(bridge.getLatencyPercentileMillis(0.5)).isGreaterThanOrEqualTo(0);
+        bridge.stop();
+        assertThat(pool.getOutstandingCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void recycleOnLatency() throws Exception {
+        Options<String> options = createOptions();
+        options.setHealthCheckIntervalMillis(100);
+        options.setRecycleLatencyThresholdMillis(5);
+        StdioBridge<String> bridge = new StdioBridge<>(options, "-u", "src/test/resources/python/pidWithReadySignal.py");
+        bridge.start();
+        String pid = pid(bridge, "request");
+        // The latency percentile is only checked after enough samples
+        for (int i = 0; i < 100; i++)
+            pid(bridge, "sleep 10");
+        assertThat(awaitOtherPid(bridge, pid)).isNotEqualTo(pid);
+        bridge.stop();
+    }
+
+    @Test
+    public void recycleOnResidentSetSize() throws Exception {
+        Options<String> options = createOptions();
+        options.setHealthCheckIntervalMillis(100);
+        // Exceeded by any process
+        options.setRecycleResidentSetSizeBytes(1);
+        StdioBridge<String> bridge = new StdioBridge<>(options, "-u", "src/test/resources/python/pidWithReadySignal.py");
+        bridge.start();
+        String pid = pid(bridge, "request");
+        assertThat(awaitOtherPid(bridge, pid)).isNotEqualTo(pid);
+        bridge.stop();
+    }
+
+    private Options<String> createOptions() {
+        Options<String> options = new Options<>(String.class);
+        options.setExecutable("python");
+        options.setExternalProgramTerminationSignal("exit");
+        options.setExternalProgramReadySignal("Ready!");
+        return options;
+    }
+
+    private String pid(StdioBridge<String> bridge, String request) throws InterruptedException {
+        return bridge.sendAndReceive(request).findAny().get();
+    }
+
+    /**
+     * Sends requests until they are answered by another process than <tt>pid</tt> or ten seconds have passed.
+     */
+    private String awaitOtherPid(StdioBridge<String> bridge, String pid) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        String current = pid(bridge, "request");
+        while (current.equals(pid) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+            current = pid(bridge, "request");
+        }
+        return current;
+    }
+}
@@ -0,0 +1,53 @@
+package de.julielab.ipc.javabridge;
+
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+/**
+ * Tests that requests of concurrent callers are sent as batches and that each caller gets its own response back.
+ */
+public class MicroBatchingTest {
+    @Test
+    public void concurrentBatchedRequests() throws Exception {
+        Options<byte[]> options = new Options<>(byte[].class);
+        options.setExecutable("python");
+        options.setExternalProgramTerminationSignal("exit");
+        options.setBatchMaxSize(16);
+        options.setBatchMaxDelayMicros(2000);
+        StdioBridge<byte[]> bridge = new StdioBridge<>(options, "-u", "src/test/resources/python/batchEcho.py");
+        bridge.start();
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<byte[]>> responses = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            String request = "request " + (i % 50);
+            responses.add(executor.submit(() -> bridge.sendAndReceiveBatched(request)));
+        }
+        for (int i = 0; i < responses.size(); i++) {
+            String expected = new StringBuilder("request " + (i % 50)).reverse().toString();
+            assertThat(new String(responses.get(i).get(), StandardCharsets.UTF_8)).isEqualTo(expected);
+        }
+        executor.shutdown();
+        bridge.stop();
+    }
+
+    @Test
+    public void batchingRequiresBinaryResults() {
+        Options<String> options = new Options<>(String.class);
+        options.setExecutable("python");
+        options.setBatchMaxSize(16);
+        StdioBridge<String> bridge = new StdioBridge<>(options, "-u", "src/test/resources/python/batchEcho.py");
+        // Rejected before the external program is started
+        assertThatIllegalArgumentException().isThrownBy(bridge::start);
+        assertThat(bridge.isRunning()).isFalse();
+    }
+}
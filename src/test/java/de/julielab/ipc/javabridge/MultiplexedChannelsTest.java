@@ -0,0 +1,96 @@
+package de.julielab.ipc.javabridge;
+
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.assertj.core.api.Assertions.assertThatIllegalStateException;
+
+/**
+ * Tests that several logical channels share one external process and that each caller gets the response of its
+ * own channel.
+ */
+public class MultiplexedChannelsTest {
+    @Test
+    public void concurrentChannels() throws Exception {
+        Options<byte[]> options = new Options<>(byte[].class);
+        options.setExecutable("python");
+        options.setExternalProgramTerminationSignal("exit");
+        options.setExternalProgramReadySignal("Ready!");
+        options.setMultiplexed(true);
+        StdioBridge<byte[]> bridge = new StdioBridge<>(options, "-u", "src/test/resources/python/reference/channels.py");
+        bridge.start();
+        LogicalChannel<String> reversing = bridge.channel(1, bytes -> new String(bytes, StandardCharsets.UTF_8));
+        LogicalChannel<String> upperCasing = bridge.channel(2, bytes -> new String(bytes, StandardCharsets.UTF_8));
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<String>> responses = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            LogicalChannel<String> channel = i % 2 == 0 ? reversing : upperCasing;
+            String request = "request " + i;
+            responses.add(executor.submit(() -> channel.sendAndReceive(request)));
+        }
+        for (int i = 0; i < responses.size(); i++) {
+            String request = "request " + i;
+            String expected = i % 2 == 0 ? new StringBuilder(request).reverse().toString() : request.toUpperCase();
+            assertThat(responses.get(i).get()).isEqualTo(expected);
+        }
+        executor.shutdown();
+        assertThat(reversing.getRequestCount()).isEqualTo(100);
+        assertThat(upperCasing.getBytesReceived()).isEqualTo(upperCasing.getBytesSent());
+
+        reversing.send("abc");
+        assertThat(reversing.receive()).isEqualTo("cba");
+        assertThat(bridge.channel(3).sendAndReceive("unknown")).isEmpty();
+        bridge.stop();
+    }
+
+    @Test
+    public void bridgeLevelExchangesAreRejected() throws Exception {
+        Options<byte[]> options = new Options<>(byte[].class);
+        options.setExecutable("python");
+        options.setExternalProgramTerminationSignal("exit");
+        options.setExternalProgramReadySignal("Ready!");
+        options.setMultiplexed(true);
+        options.setHealthCheckIntervalMillis(50);
+        options.setHealthCheckMessage("ping");
+        StdioBridge<byte[]> bridge = new StdioBridge<>(options, "-u", "src/test/resources/python/reference/channels.py");
+        bridge.start();
+        assertThatIllegalStateException().isThrownBy(() -> bridge.sendAndReceive("request"));
+        assertThatIllegalStateException().isThrownBy(() -> bridge.send("request"));
+        assertThatIllegalStateException().isThrownBy(bridge::receiveOne);
+        assertThatIllegalStateException().isThrownBy(bridge::getResultPublisher);
+
+        // Health check pings would never be answered and would block the recycling
+        Thread.sleep(300);
+        bridge.recycle();
+        assertThat(new String(bridge.channel(1).sendAndReceive("abc"), StandardCharsets.UTF_8)).isEqualTo("cba");
+        bridge.stop();
+    }
+
+    @Test
+    public void pendingRequestsFailWhenTheProgramTerminates() throws Exception {
+        Options<byte[]> options = new Options<>(byte[].class);
+        options.setExecutable("python");
+        options.setExternalProgramTerminationSignal("exit");
+        options.setExternalProgramReadySignal("Ready!");
+        options.setMultiplexed(true);
+        StdioBridge<byte[]> bridge = new StdioBridge<>(options, "-u", "src/test/resources/python/reference/channels.py");
+        bridge.start();
+        LogicalChannel<byte[]> crashing = bridge.channel(9);
+        assertThatExceptionOfType(ExternalProgramTerminationException.class).isThrownBy(() -> crashing.sendAndReceive("crash"));
+        // Requests sent to the terminated instance fail right away instead of waiting forever
+        assertThatExceptionOfType(ExternalProgramTerminationException.class).isThrownBy(() -> bridge.channel(1).sendAndReceive("abc"));
+
+        bridge.recycle();
+        assertThat(new String(bridge.channel(1).sendAndReceive("abc"), StandardCharsets.UTF_8)).isEqualTo("cba");
+        bridge.stop();
+    }
+}
@@ -0,0 +1,84 @@
+package de.julielab.ipc.javabridge;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests that the external program is replaced after the number of requests, request bytes or milliseconds
+ * configured for recycling. The test program answers each request with its process ID.
+ */
+public class RecyclingPolicyTest {
+    @Test
+    public void recycleAfterRequests() throws Exception {
+        Options<String> options = createOptions();
+        options.setRecycleAfterRequests(5);
+        StdioBridge<String> bridge = new StdioBridge<>(options, "-u", "src/test/resources/python/pidWithReadySignal.py");
+        bridge.start();
+        List<String> pids = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+            pids.add(pid(bridge, "request"));
+        assertThat(pids).containsOnly(pids.get(0));
+        assertThat(awaitOtherPid(bridge, pids.get(0), "request")).isNotEqualTo(pids.get(0));
+        bridge.stop();
+    }
+
+    @Test
+    public void recycleAfterBytes() throws Exception {
+        Options<String> options = createOptions();
+        options.setRecycleAfterBytes(100);
+        StdioBridge<String> bridge = new StdioBridge<>(options, "-u", "src/test/resources/python/pidWithReadySignal.py");
+        bridge.start();
+        String request = "x".repeat(40);
+        List<String> pids = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            pids.add(pid(bridge, request));
+        assertThat(pids).containsOnly(pids.get(0));
+        assertThat(awaitOtherPid(bridge, pids.get(0), request)).isNotEqualTo(pids.get(0));
+        bridge.stop();
+    }
+
+    @Test
+    public void recycleAfterMillis() throws Exception {
+        Options<String> options = createOptions();
+        options.setRecycleAfterMillis(500);
+        StdioBridge<String> bridge = new StdioBridge<>(options, "-u", "src/test/resources/python/pidWithReadySignal.py");
+        bridge.start();
+        String pid = pid(bridge, "request");
+        assertThat(pid(bridge, "request")).isEqualTo(pid);
+        // The maintenance thread recycles the idle external program, too
+        Thread.sleep(2000);
+        String recycledPid = pid(bridge, "request");
+        assertThat(recycledPid).isNotEqualTo(pid);
+        bridge.stop();
+    }
+
+    private Options<String> createOptions() {
+        Options<String> options = new Options<>(String.class);
+        options.setExecutable("python");
+        options.setExternalProgramTerminationSignal("exit");
+        options.setExternalProgramReadySignal("Ready!");
+        return options;
+    }
+
+    private String pid(StdioBridge<String> bridge, String request) throws InterruptedException {
+        return bridge.sendAndReceive(request).findAny().get();
+    }
+
+    /**
+     * Sends requests until they are answered by another process than <tt>pid</tt> or ten seconds have passed. The
+     * replacement is started in the background and takes over once it is ready.
+     */
+    private String awaitOtherPid(StdioBridge<String> bridge, String pid, String request) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        String current = pid(bridge, request);
+        while (current.equals(pid) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+            current = pid(bridge, request);
+        }
+        return current;
+    }
+}
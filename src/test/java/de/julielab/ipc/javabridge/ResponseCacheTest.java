@@ -0,0 +1,41 @@
+package de.julielab.ipc.javabridge;
+
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests the deduplication of identical requests that are in flight at the same time.
+ */
+public class ResponseCacheTest {
+    @Test
+    public void waiterRetriesWhenTheLeadingRequestIsInterrupted() throws Exception {
+        ResponseCache<String> cache = new ResponseCache<>(10, 0, null);
+        byte[] request = "request".getBytes();
+        CountDownLatch sending = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Future<List<String>> leading = executor.submit(() -> cache.get(request, r -> {
+            sending.countDown();
+            Thread.sleep(60000);
+            return Collections.singletonList("never");
+        }));
+        sending.await();
+        Future<List<String>> waiting = executor.submit(() -> cache.get(request, r -> Collections.singletonList("response")));
+        // Give the second request the time to find the first one in flight
+        Thread.sleep(200);
+        leading.cancel(true);
+
+        // The second request has not been interrupted itself, so it sends the request on its own
+        assertThat(waiting.get()).containsExactly("response");
+        assertThat(cache.getMissCount()).isEqualTo(2);
+        assertThat(cache.getDeduplicatedCount()).isEqualTo(0);
+        executor.shutdown();
+    }
+}
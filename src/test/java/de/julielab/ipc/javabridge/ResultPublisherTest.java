@@ -0,0 +1,125 @@
+package de.julielab.ipc.javabridge;
+
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests that results pushed by the external program are delivered to a subscriber according to its demand.
+ */
+public class ResultPublisherTest {
+    @Test
+    public void demandDrivenDelivery() throws Exception {
+        Options<String> options = new Options<>(String.class);
+        options.setExecutable("python");
+        options.setExternalProgramTerminationSignal("exit");
+        StdioBridge<String> bridge = new StdioBridge<>(options, "-u", "src/test/resources/python/pushEvents.py");
+        bridge.start();
+
+        List<String> events = new CopyOnWriteArrayList<>();
+        AtomicReference<Flow.Subscription> subscription = new AtomicReference<>();
+        CountDownLatch firstBatch = new CountDownLatch(10);
+        CountDownLatch all = new CountDownLatch(1000);
+        bridge.getResultPublisher().subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                subscription.set(s);
+                s.request(10);
+            }
+
+            @Override
+            public void onNext(String item) {
+                events.add(item);
+                firstBatch.countDown();
+                all.countDown();
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+        bridge.send("1000");
+        assertThat(firstBatch.await(10, TimeUnit.SECONDS)).isTrue();
+        Thread.sleep(200);
+        // Without further demand, nothing more is delivered
+        assertThat(events).hasSize(10);
+        subscription.get().request(990);
+        assertThat(all.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(events).hasSize(1000).endsWith("event 999");
+
+        // After cancellation, messages are available to receive() again
+        subscription.get().cancel();
+        bridge.send("2");
+        assertThat(bridge.receiveOne()).isEqualTo("event 0");
+        assertThat(bridge.receiveOne()).isEqualTo("event 1");
+        bridge.stop();
+    }
+
+    @Test
+    public void subscribeAgainAfterCancel() throws Exception {
+        Options<String> options = new Options<>(String.class);
+        options.setExecutable("python");
+        options.setExternalProgramTerminationSignal("exit");
+        StdioBridge<String> bridge = new StdioBridge<>(options, "-u", "src/test/resources/python/pushEvents.py");
+        bridge.start();
+
+        CollectingSubscriber first = new CollectingSubscriber(2);
+        bridge.getResultPublisher().subscribe(first);
+        bridge.send("2");
+        assertThat(first.received.await(10, TimeUnit.SECONDS)).isTrue();
+        first.subscription.cancel();
+
+        // The cancelled subscription must not block the next subscriber
+        CollectingSubscriber second = new CollectingSubscriber(3);
+        bridge.getResultPublisher().subscribe(second);
+        bridge.send("3");
+        assertThat(second.received.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(second.error).isNull();
+        assertThat(second.events).containsExactly("event 0", "event 1", "event 2");
+        assertThat(first.events).containsExactly("event 0", "event 1");
+        bridge.stop();
+    }
+
+    private static class CollectingSubscriber implements Flow.Subscriber<String> {
+        private final List<String> events = new CopyOnWriteArrayList<>();
+        private final CountDownLatch received;
+        private volatile Flow.Subscription subscription;
+        private volatile Throwable error;
+
+        private CollectingSubscriber(int expectedEvents) {
+            this.received = new CountDownLatch(expectedEvents);
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(String item) {
+            events.add(item);
+            received.countDown();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package de.julielab.ipc.javabridge;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+/**
+ * Tests the session deflate compression of requests and responses.
+ */
+public class SessionCompressionTest {
+    @Test
+    public void deflateSession() throws Exception {
+        Options<byte[]> options = new Options<>(byte[].class);
+        options.setExecutable("python");
+        options.setExternalProgramTerminationSignal("exit");
+        options.setExternalProgramReadySignal("Ready!");
+        options.setDeflateSessionSentData(true);
+        options.setDeflateSessionReceivedData(true);
+        StdioBridge<byte[]> bridge = new StdioBridge<>(options, "-u", "src/test/resources/python/reference/echoWorker.py", "deflate");
+        bridge.start();
+
+        for (int i = 0; i < 100; i++) {
+            byte[] request = ("{\"id\": " + i + ", \"text\": \"The quick brown fox jumps over the lazy dog.\"}").getBytes(StandardCharsets.UTF_8);
+            assertThat(bridge.sendAndReceiveOne(request)).isEqualTo(request);
+        }
+        // Streamed requests continue the same deflate stream
+        byte[] request = new byte[1 << 18];
+        new Random(3).nextBytes(request);
+        bridge.send(new ByteArrayInputStream(request), request.length);
+        assertThat(bridge.receiveOne()).isEqualTo(request);
+        byte[] last = "last".getBytes(StandardCharsets.UTF_8);
+        assertThat(bridge.sendAndReceiveOne(last)).isEqualTo(last);
+        bridge.stop();
+    }
+
+    @Test
+    public void similarMessagesShareTheHistory() {
+        SessionDeflater deflater = new SessionDeflater();
+        byte[] first = deflater.compress("{\"id\": 1, \"text\": \"The quick brown fox jumps over the lazy dog.\"}".getBytes(StandardCharsets.UTF_8));
+        byte[] second = deflater.compress("{\"id\": 2, \"text\": \"The quick brown fox jumps over the lazy dog.\"}".getBytes(StandardCharsets.UTF_8));
+        // The second message is mostly a back reference into the first one
+        assertThat(second.length).isLessThan(first.length / 2);
+        deflater.end();
+    }
+
+    @Test
+    public void combinationWithGzipIsRejected() {
+        Options<byte[]> options = new Options<>(byte[].class);
+        options.setExecutable("python");
+        options.setDeflateSessionSentData(true);
+        options.setGzipSentData(true);
+        StdioBridge<byte[]> bridge = new StdioBridge<>(options, "-u", "src/test/resources/python/reference/echoWorker.py", "deflate");
+        assertThatIllegalArgumentException().isThrownBy(bridge::start);
+    }
+}
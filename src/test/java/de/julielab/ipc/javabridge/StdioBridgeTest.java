@@ -4,12 +4,18 @@ import org.testng.annotations.Ignore;
 import org.testng.annotations.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatCode;
 import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.assertj.core.api.Assertions.assertThatIllegalStateException;
 
 /**
  * In this class we test the basic functionality of the external python IO: Sending data, receiving data, waiting
@@ -150,6 +156,41 @@ public class StdioBridgeTest {
         assertThatCode(bridge::stop).doesNotThrowAnyException();
     }
 
+    @Test
+    public void receiveMultipleLinesWithCallback() throws Exception {
+        Options<String> params = new Options<>(String.class);
+        params.setExecutable("python");
+        params.setExternalProgramTerminationSignal("exit");
+        params.setMultilineResponseDelimiter("last line");
+        StdioBridge<String> bridge = new StdioBridge<>(params, "-u", "src/test/resources/python/multilineResponse.py");
+        assertThatCode(bridge::start).doesNotThrowAnyException();
+        bridge.send("some data");
+        final List<String> responses = bridge.receive().collect(Collectors.toList());
+        bridge.send("more data");
+        final List<String> consumed = new ArrayList<>();
+        assertThat(bridge.receive(consumed::add)).isEqualTo(3);
+        assertThat(consumed).isEqualTo(responses);
+        assertThatIllegalStateException().isThrownBy(() -> bridge.sendAndReceiveOne("more data"));
+        assertThatCode(bridge::stop).doesNotThrowAnyException();
+    }
+
+    @Test
+    public void singleResultAccess() throws Exception {
+        Options<String> params = new Options<>(String.class);
+        params.setExecutable("python");
+        params.setExternalProgramTerminationSignal("exit");
+        params.setResultReshaper(String::toUpperCase);
+        StdioBridge<String> bridge = new StdioBridge<>(params, "-u", "src/test/resources/python/simple.py");
+        assertThatCode(bridge::start).doesNotThrowAnyException();
+        assertThat(bridge.sendAndReceiveOne("Hallo")).isEqualTo("GOT LINE: HALLO");
+        bridge.send("Another line");
+        assertThat(bridge.receiveOne()).isEqualTo("GOT LINE: ANOTHER LINE");
+        final List<String> consumed = new ArrayList<>();
+        assertThat(bridge.sendAndReceive("Third line", consumed::add)).isEqualTo(1);
+        assertThat(consumed).containsExactly("GOT LINE: THIRD LINE");
+        assertThatCode(bridge::stop).doesNotThrowAnyException();
+    }
+
     @Test
     public void terminateOnSyntaxErrorTest() throws Exception {
         // Here we test that the termination of bridge in the case of a syntax
@@ -162,4 +203,92 @@ public class StdioBridgeTest {
         // We need the receive() call because otherwise the test would end before the python error has come back
         assertThatExceptionOfType(InterruptedException.class).isThrownBy(bridge::receive);
     }
+
+    @Test
+    public void recentErrorStreamLines() throws Exception {
+        // The error stream is discarded for logging but the termination signal must still be detected and the
+        // recent lines must still be available
+        Options<String> params = new Options<>(String.class);
+        params.setExecutable("python");
+        params.setTerminationSignalFromErrorStream("SyntaxError");
+        params.setDiscardErrorStream(true);
+        StdioBridge<String> bridge = new StdioBridge<>(params, "-u", "src/test/resources/python/syntaxError.py");
+        bridge.start();
+        assertThatExceptionOfType(InterruptedException.class).isThrownBy(bridge::receive);
+        assertThat(bridge.getRecentErrorStreamLines()).anyMatch(line -> line.contains("SyntaxError"));
+    }
+
+    @Test
+    public void errorStreamLoggedAtStop() throws Exception {
+        // The error output of a crashing program must be logged completely, even if the bridge is stopped right away
+        List<String> logged = Collections.synchronizedList(new ArrayList<>());
+        Options<String> params = new Options<>(String.class);
+        params.setExecutable("python");
+        params.setExternalProgramReadySignal("Ready!");
+        // Makes stop() wait for the program to end
+        params.setExternalProgramTerminationSignal("exit");
+        params.setErrorStreamLevelMapper(line -> {
+            logged.add(line);
+            return null;
+        });
+        StdioBridge<String> bridge = new StdioBridge<>(params, "-u", "src/test/resources/python/crashAfterRequest.py");
+        bridge.start();
+        bridge.send("crash");
+        bridge.stop();
+        assertThat(logged).hasSize(2000).endsWith("Traceback line 1999");
+    }
+
+    @Test
+    public void cachedSendAndReceive() throws InterruptedException {
+        Options<String> params = new Options<>(String.class);
+        params.setExecutable("python");
+        params.setExternalProgramTerminationSignal("exit");
+        params.setResponseCacheMaxEntries(1);
+        StdioBridge<String> bridge = new StdioBridge<>(params, "-u", "src/test/resources/python/simple.py");
+        assertThatCode(bridge::start).doesNotThrowAnyException();
+        assertThat(bridge.sendAndReceive("Double Action")).containsExactly("Got line: Double Action");
+        assertThat(bridge.sendAndReceive("Double Action")).containsExactly("Got line: Double Action");
+        assertThat(bridge.sendAndReceive("Another line")).containsExactly("Got line: Another line");
+        // The first entry has been evicted by the second
+        assertThat(bridge.sendAndReceive("Double Action")).containsExactly("Got line: Double Action");
+        assertThat(bridge.getResponseCache().getHitCount()).isEqualTo(1);
+        assertThat(bridge.getResponseCache().getMissCount()).isEqualTo(3);
+        assertThatCode(bridge::stop).doesNotThrowAnyException();
+    }
+
+    @Test
+    public void asyncWriter() throws Exception {
+        Options<String> params = new Options<>(String.class);
+        params.setExecutable("python");
+        params.setExternalProgramTerminationSignal("exit");
+        params.setAsyncWriter(true);
+        params.setMaxInFlightRequests(8);
+        StdioBridge<String> bridge = new StdioBridge<>(params, "-u", "src/test/resources/python/simple.py");
+        assertThatCode(bridge::start).doesNotThrowAnyException();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<String>> responses = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            String request = "line " + i;
+            responses.add(executor.submit(() -> bridge.sendAndReceiveOne(request)));
+        }
+        for (int i = 0; i < responses.size(); i++)
+            assertThat(responses.get(i).get()).isEqualTo("Got line: line " + i);
+        executor.shutdown();
+        assertThatCode(bridge::stop).doesNotThrowAnyException();
+    }
+
+    @Test
+    public void recycle() throws Exception {
+        Options<String> params = new Options<>(String.class);
+        params.setExecutable("python");
+        params.setExternalProgramTerminationSignal("exit");
+        params.setExternalProgramReadySignal("Ready!");
+        StdioBridge<String> bridge = new StdioBridge<>(params, "-u", "src/test/resources/python/simpleWithReadySignal.py");
+        assertThatCode(bridge::start).doesNotThrowAnyException();
+        assertThat(bridge.sendAndReceive("Double Action")).containsExactly("Got line: Double Action");
+        bridge.recycle();
+        assertThat(bridge.sendAndReceive("Another line")).containsExactly("Got line: Another line");
+        assertThat(bridge.getLatencyPercentileMillis(0.99)).isGreaterThan(0);
+        assertThatCode(bridge::stop).doesNotThrowAnyException();
+    }
 }
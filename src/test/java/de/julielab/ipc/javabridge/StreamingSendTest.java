@@ -0,0 +1,82 @@
+package de.julielab.ipc.javabridge;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+/**
+ * Tests that large requests can be streamed to the external program from streams and files.
+ */
+public class StreamingSendTest {
+    @Test
+    public void streamedRequests() throws Exception {
+        Options<byte[]> options = new Options<>(byte[].class);
+        options.setExecutable("python");
+        options.setExternalProgramTerminationSignal("exit");
+        options.setExternalProgramReadySignal("Ready!");
+        StdioBridge<byte[]> bridge = new StdioBridge<>(options, "-u", "src/test/resources/python/reference/echoWorker.py");
+        bridge.start();
+
+        byte[] request = new byte[1 << 20];
+        new Random(1).nextBytes(request);
+        bridge.send(new ByteArrayInputStream(request), request.length);
+        assertThat(bridge.receive().findAny()).hasValueSatisfying(response -> assertThat(response).isEqualTo(request));
+        // Unknown length: the request is sent in chunks and reassembled by the stdioipc module
+        bridge.send(new ByteArrayInputStream(request), -1);
+        assertThat(bridge.receive().findAny()).hasValueSatisfying(response -> assertThat(response).isEqualTo(request));
+        bridge.stop();
+    }
+
+    @Test
+    public void fileRequests() throws Exception {
+        Options<byte[]> options = new Options<>(byte[].class);
+        options.setExecutable("python");
+        options.setExternalProgramTerminationSignal("exit");
+        options.setExternalProgramReadySignal("Ready!");
+        StdioBridge<byte[]> bridge = new StdioBridge<>(options, "-u", "src/test/resources/python/reference/echoWorker.py");
+        bridge.start();
+
+        byte[] content = new byte[1 << 20];
+        new Random(2).nextBytes(content);
+        Path file = Files.createTempFile("stdiobridge", ".bin");
+        try {
+            Files.write(file, content);
+            bridge.send(file);
+            assertThat(bridge.receive().findAny()).hasValueSatisfying(response -> assertThat(response).isEqualTo(content));
+            try (FileChannel channel = FileChannel.open(file)) {
+                bridge.send(channel, 100, 1000);
+            }
+            assertThat(bridge.receive().findAny()).hasValueSatisfying(response -> assertThat(response).isEqualTo(Arrays.copyOfRange(content, 100, 1100)));
+        } finally {
+            Files.delete(file);
+        }
+        bridge.stop();
+    }
+
+    @Test
+    public void invalidRegions() throws Exception {
+        Options<byte[]> options = new Options<>(byte[].class);
+        options.setExecutable("python");
+        StdioBridge<byte[]> bridge = new StdioBridge<>(options, "-u", "src/test/resources/python/reference/echoWorker.py");
+        // The arguments are checked before anything is sent
+        assertThatIllegalArgumentException().isThrownBy(() -> bridge.send(new ByteArrayInputStream(new byte[1]), -2));
+        Path file = Files.createTempFile("stdiobridge", ".bin");
+        try (FileChannel channel = FileChannel.open(file)) {
+            Files.write(file, new byte[100]);
+            assertThatIllegalArgumentException().isThrownBy(() -> bridge.send(channel, -1, 10));
+            assertThatIllegalArgumentException().isThrownBy(() -> bridge.send(channel, 0, -1));
+            assertThatIllegalArgumentException().isThrownBy(() -> bridge.send(channel, 50, 51));
+            assertThatIllegalArgumentException().isThrownBy(() -> bridge.send(channel, Long.MAX_VALUE, 1));
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
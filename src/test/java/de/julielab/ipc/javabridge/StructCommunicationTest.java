@@ -7,6 +7,9 @@ import java.nio.ByteBuffer;
 import java.nio.DoubleBuffer;
 import java.util.Base64;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
 import static org.assertj.core.api.Assertions.*;
 
@@ -45,6 +48,112 @@ public class StructCommunicationTest {
         assertThat(array).isEqualTo(new double[]{0.7, 0.8, 0.9});
     }
 
-}
+    @Test
+    public void pooledBuffers() throws InterruptedException, IOException {
+        Options<PooledBuffer> options = new Options<>(PooledBuffer.class);
+        options.setExecutable("python");
+        options.setExternalProgramTerminationSignal("exit");
+        options.setExternalProgramReadySignal("Ready!");
+        DirectBufferPool pool = new DirectBufferPool();
+        options.setDirectBufferPool(pool);
+        StdioBridge<PooledBuffer> bridge = new StdioBridge<>(options, "-u", "src/test/resources/python/arrayVectorExchange.py");
+        bridge.start();
+
+        try (PooledBuffer response = bridge.sendAndReceive("blabla").findAny().get()) {
+            DoubleBuffer db = response.buffer().asDoubleBuffer();
+            double[] array = new double[db.remaining()];
+            db.get(array);
+            assertThat(array).isEqualTo(new double[]{0.1, 0.2, 0.3, -0.4, 0, 42.1337});
+        }
+        try (PooledBuffer response = bridge.receive().findAny().get()) {
+            assertThat(response.buffer().remaining()).isEqualTo(3 * Double.BYTES);
+        }
+        assertThat(pool.getOutstandingCount()).isEqualTo(0);
+        bridge.stop();
+    }
+
+    @Test
+    public void pooledBuffersRejectOversizedMessages() throws Exception {
+        Options<PooledBuffer> options = new Options<>(PooledBuffer.class);
+        options.setExecutable("python");
+        options.setExternalProgramTerminationSignal("exit");
+        options.setExternalProgramReadySignal("Ready!");
+        // The first response holds 48 bytes
+        DirectBufferPool pool = new DirectBufferPool(16, 32, 4, false);
+        options.setDirectBufferPool(pool);
+        StdioBridge<PooledBuffer> bridge = new StdioBridge<>(options, "-u", "src/test/resources/python/arrayVectorExchange.py");
+        bridge.start();
+
+        CompletableFuture<Throwable> failure = new CompletableFuture<>();
+        bridge.getResultPublisher().subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(PooledBuffer item) {
+                item.release();
+            }
 
+            @Override
+            public void onError(Throwable throwable) {
+                failure.complete(throwable);
+            }
 
+            @Override
+            public void onComplete() {
+                failure.complete(null);
+            }
+        });
+        bridge.send("blabla");
+        assertThat(failure.get(10, TimeUnit.SECONDS)).isInstanceOf(IOException.class).hasMessageContaining("48 bytes");
+        assertThat(pool.getOutstandingCount()).isEqualTo(0);
+        bridge.stop();
+    }
+
+    @Test
+    public void discardedPooledBuffersAreReleased() throws Exception {
+        Options<PooledBuffer> options = new Options<>(PooledBuffer.class);
+        options.setExecutable("python");
+        options.setExternalProgramTerminationSignal("exit");
+        options.setExternalProgramReadySignal("Ready!");
+        DirectBufferPool pool = new DirectBufferPool();
+        options.setDirectBufferPool(pool);
+        StdioBridge<PooledBuffer> bridge = new StdioBridge<>(options, "-u", "src/test/resources/python/reference/echoWorker.py");
+        bridge.start();
+
+        // Large requests so that the callers are interrupted while waiting for their responses, which are then
+        // received and discarded by the next caller
+        byte[] request = new byte[1 << 20];
+        for (int i = 0; i < 20; i++) {
+            Thread caller = new Thread(() -> {
+                try (PooledBuffer response = bridge.sendAndReceiveOne(request)) {
+                    assertThat(response.buffer().remaining()).isEqualTo(request.length);
+                } catch (InterruptedException e) {
+                    // Expected for most callers
+                }
+            });
+            caller.start();
+            Thread.sleep(5);
+            caller.interrupt();
+            caller.join();
+        }
+        try (PooledBuffer response = bridge.sendAndReceiveOne("last".getBytes())) {
+            assertThat(response.toByteArray()).isEqualTo("last".getBytes());
+        }
+        assertThat(pool.getOutstandingCount()).isEqualTo(0);
+        bridge.stop();
+    }
+
+    @Test
+    public void pooledBuffersCannotBeCached() {
+        Options<PooledBuffer> options = new Options<>(PooledBuffer.class);
+        options.setExecutable("python");
+        options.setExternalProgramTerminationSignal("exit");
+        options.setResponseCacheMaxEntries(10);
+        StdioBridge<PooledBuffer> bridge = new StdioBridge<>(options, "-u", "src/test/resources/python/arrayVectorExchange.py");
+        assertThatIllegalArgumentException().isThrownBy(bridge::start);
+        assertThat(bridge.isRunning()).isFalse();
+    }
+}
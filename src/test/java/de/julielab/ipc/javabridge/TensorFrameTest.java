@@ -0,0 +1,32 @@
+package de.julielab.ipc.javabridge;
+
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests the decoding of responses holding multiple fields in the tensor frame format written by the reference
+ * Python module.
+ */
+public class TensorFrameTest {
+    @Test
+    public void multipleFields() throws Exception {
+        Options<byte[]> options = new Options<>(byte[].class);
+        options.setExecutable("python");
+        options.setExternalProgramTerminationSignal("exit");
+        options.setExternalProgramReadySignal("Ready!");
+        StdioBridge<byte[]> bridge = new StdioBridge<>(options, "-u", "src/test/resources/python/reference/tensorFrame.py");
+        bridge.start();
+
+        TensorFrame frame = bridge.sendAndReceive("some three tokens").map(ResultDecoders.decodeTensorFrame).findAny().get();
+        assertThat(frame.getFieldNames()).containsExactly("ids", "offsets", "embeddings", "scores");
+        assertThat(frame.getDType("offsets")).isEqualTo(TensorFrame.DType.INT64);
+        assertThat(frame.getShape("embeddings")).containsExactly(3, 3);
+        assertThat(frame.getInts("ids")).containsExactly(0, 1, 2);
+        assertThat(frame.getLongs("offsets")).containsExactly(0, 1, 1, 2, 2, 3);
+        assertThat(frame.getDoubleMatrix("embeddings")[2]).containsExactly(3, 3.5, 4);
+        assertThat(frame.getFloats("scores")).containsExactly(0.25f, 0.25f, 0.25f);
+
+        bridge.stop();
+    }
+}
@@ -0,0 +1,128 @@
+package de.julielab.ipc.javabridge;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests that recorded traffic can be served by the {@link TrafficReplayer} in place of the external program and
+ * replayed against a bridge.
+ */
+public class TrafficRecordingTest {
+    @Test
+    public void recordAndStandIn() throws Exception {
+        Path recording = Files.createTempFile("traffic", ".bin");
+        try {
+            Options<String> options = new Options<>(String.class);
+            options.setExecutable("python");
+            options.setExternalProgramTerminationSignal("exit");
+            options.setTrafficRecordFile(recording);
+            StdioBridge<String> bridge = new StdioBridge<>(options, "-u", "src/test/resources/python/simple.py");
+            bridge.start();
+            for (int i = 0; i < 10; i++)
+                bridge.sendAndReceiveOne("line " + i);
+            bridge.stop();
+
+            TrafficReplayer replayer = new TrafficReplayer(recording);
+            assertThat(replayer.getRequestCount()).isEqualTo(10);
+
+            Options<String> standInOptions = new Options<>(String.class);
+            standInOptions.setExecutable("java");
+            standInOptions.setExternalProgramTerminationSignal("exit");
+            standInOptions.setExternalProgramReadySignal("Ready!");
+            StdioBridge<String> standIn = new StdioBridge<>(standInOptions, "-cp", System.getProperty("java.class.path"), TrafficReplayer.class.getName(), recording.toString(), "Ready!", "exit");
+            standIn.start();
+            assertThat(standIn.sendAndReceiveOne("line 7")).isEqualTo("Got line: line 7");
+            TrafficReplayer.ReplayResult result = replayer.replay(standIn, Double.POSITIVE_INFINITY, 2);
+            assertThat(result.getCompletedCount()).isEqualTo(10);
+            assertThat(result.getFailureCount()).isEqualTo(0);
+            standIn.stop();
+        } finally {
+            Files.delete(recording);
+        }
+    }
+
+    @Test
+    public void pushedResponsesDoNotShiftPairing() throws Exception {
+        Path recording = Files.createTempFile("traffic", ".bin");
+        try {
+            Options<String> options = new Options<>(String.class);
+            options.setExecutable("python");
+            options.setExternalProgramTerminationSignal("exit");
+            options.setTrafficRecordFile(recording);
+            StdioBridge<String> bridge = new StdioBridge<>(options, "-u", "src/test/resources/python/pushEvents.py");
+            bridge.start();
+            // A streamed request answered by two messages that are received without an exchange
+            bridge.send(new ByteArrayInputStream("2".getBytes(StandardCharsets.UTF_8)), 1);
+            assertThat(bridge.receiveOne()).isEqualTo("event 0");
+            assertThat(bridge.receiveOne()).isEqualTo("event 1");
+            for (int i = 0; i < 3; i++)
+                assertThat(bridge.sendAndReceiveOne("1")).isEqualTo("event 0");
+            bridge.stop();
+
+            TrafficReplayer replayer = new TrafficReplayer(recording);
+            assertThat(replayer.getRequestCount()).isEqualTo(4);
+
+            Options<String> standInOptions = new Options<>(String.class);
+            standInOptions.setExecutable("java");
+            standInOptions.setExternalProgramTerminationSignal("exit");
+            standInOptions.setExternalProgramReadySignal("Ready!");
+            StdioBridge<String> standIn = new StdioBridge<>(standInOptions, "-cp", System.getProperty("java.class.path"), TrafficReplayer.class.getName(), recording.toString(), "Ready!", "exit");
+            standIn.start();
+            standIn.send("2");
+            assertThat(standIn.receiveOne()).isEqualTo("event 0");
+            assertThat(standIn.receiveOne()).isEqualTo("event 1");
+            // Paired by the request ID, not by the position of the response in the recording
+            assertThat(standIn.sendAndReceiveOne("1")).isEqualTo("event 0");
+            TrafficReplayer.ReplayResult result = replayer.replay(standIn, Double.POSITIVE_INFINITY, 1);
+            assertThat(result.getCompletedCount()).isEqualTo(4);
+            assertThat(result.getFailureCount()).isEqualTo(0);
+            standIn.stop();
+        } finally {
+            Files.delete(recording);
+        }
+    }
+
+    @Test
+    public void gzipStandIn() throws Exception {
+        Path recording = Files.createTempFile("traffic", ".bin");
+        try {
+            Options<byte[]> options = new Options<>(byte[].class);
+            options.setExecutable("python");
+            options.setExternalProgramTerminationSignal("exit");
+            options.setExternalProgramReadySignal("Ready!");
+            options.setTrafficRecordFile(recording);
+            StdioBridge<byte[]> bridge = new StdioBridge<>(options, "-u", "src/test/resources/python/reference/echoWorker.py");
+            bridge.start();
+            // Starts like GZIP data without being compressed
+            byte[] gzipLookalike = {(byte) 0x1f, (byte) 0x8b, 1, 2, 3};
+            bridge.sendAndReceiveOne(gzipLookalike);
+            bridge.sendAndReceiveOne("request".getBytes(StandardCharsets.UTF_8));
+            bridge.stop();
+
+            Options<byte[]> standInOptions = new Options<>(byte[].class);
+            standInOptions.setExecutable("java");
+            standInOptions.setExternalProgramTerminationSignal("exit");
+            standInOptions.setExternalProgramReadySignal("Ready!");
+            StdioBridge<byte[]> standIn = new StdioBridge<>(standInOptions, "-cp", System.getProperty("java.class.path"), TrafficReplayer.class.getName(), recording.toString(), "Ready!", "exit");
+            standIn.start();
+            assertThat(standIn.sendAndReceiveOne(gzipLookalike)).isEqualTo(gzipLookalike);
+            standIn.stop();
+
+            standInOptions.setGzipSentData(true);
+            standInOptions.setGzipReceivedData(true);
+            standIn = new StdioBridge<>(standInOptions, "-cp", System.getProperty("java.class.path"), TrafficReplayer.class.getName(), recording.toString(), "Ready!", "exit",
+                    TrafficReplayer.GZIP_SENT_DATA_FLAG, TrafficReplayer.GZIP_RECEIVED_DATA_FLAG);
+            standIn.start();
+            assertThat(standIn.sendAndReceiveOne("request".getBytes(StandardCharsets.UTF_8))).isEqualTo("request".getBytes(StandardCharsets.UTF_8));
+            standIn.stop();
+        } finally {
+            Files.delete(recording);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package de.julielab.ipc.javabridge.performance;
+
+import de.julielab.ipc.javabridge.Options;
+import de.julielab.ipc.javabridge.StdioBridge;
+import org.testng.annotations.Ignore;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class measures the end-to-end throughput of the reference Python worker module <tt>stdioipc.py</tt> driven
+ * by a {@link StdioBridge}. It compares single request exchanges with pipelined and batched exchanges of many
+ * concurrent callers.
+ */
+@Ignore
+public class ReferenceWorkerPerformanceTest {
+    private int numRequests = 100000;
+    private int numThreads = 8;
+    private byte[] request = new byte[256];
+
+    @Test
+    public void run() throws Exception {
+        long timeSingle = runSingle(1);
+        long timePipelined = runSingle(8);
+        long timeBatched = runBatched();
+
+        System.out.println("Single: " + timeSingle + "ms, " + numRequests * 1000L / Math.max(1, timeSingle) + " requests/s");
+        System.out.println("Pipelined: " + timePipelined + "ms, " + numRequests * 1000L / Math.max(1, timePipelined) + " requests/s");
+        System.out.println("Batched: " + timeBatched + "ms, " + numRequests * 1000L / Math.max(1, timeBatched) + " requests/s");
+    }
+
+    private Options<byte[]> options() {
+        Options<byte[]> options = new Options<>(byte[].class);
+        options.setExternalProgramTerminationSignal("exit");
+        options.setExternalProgramReadySignal("Ready!");
+        options.setExecutable("python");
+        return options;
+    }
+
+    public long runSingle(int maxInFlightRequests) throws Exception {
+        Options<byte[]> options = options();
+        options.setMaxInFlightRequests(maxInFlightRequests);
+        StdioBridge<byte[]> bridge = new StdioBridge<>(options, "-u", "src/test/resources/python/reference/echoWorker.py");
+        bridge.start();
+        long time = runConcurrently(() -> bridge.sendAndReceive(request).findAny().get());
+        bridge.stop();
+        return time;
+    }
+
+    public long runBatched() throws Exception {
+        Options<byte[]> options = options();
+        options.setBatchMaxSize(64);
+        options.setBatchMaxDelayMicros(200);
+        StdioBridge<byte[]> bridge = new StdioBridge<>(options, "-u", "src/test/resources/python/reference/echoWorker.py", "batch");
+        bridge.start();
+        long time = runConcurrently(() -> bridge.sendAndReceiveBatched(request));
+        bridge.stop();
+        return time;
+    }
+
+    private long runConcurrently(Request r) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        long time = System.currentTimeMillis();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < numThreads; i++) {
+            futures.add(executor.submit(() -> {
+                for (int j = 0; j < numRequests / numThreads; j++)
+                    r.run();
+                return null;
+            }));
+        }
+        for (Future<?> f : futures)
+            f.get();
+        time = System.currentTimeMillis() - time;
+        executor.shutdown();
+        return time;
+    }
+
+    private interface Request {
+        void run() throws Exception;
+    }
+}
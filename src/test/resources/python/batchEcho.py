@@ -0,0 +1,36 @@
+'''
+A program that reads batches of requests and answers each request of a batch with
+its reversed request in one batch response.
+'''
+import sys
+from struct import *
+
+def readBytes(buffer):
+    lengthBuffer = bytearray(4)
+    buffer.readinto(lengthBuffer)
+    length = int.from_bytes(lengthBuffer, 'big')
+    content = bytearray(length)
+    buffer.readinto(content)
+    return content
+
+def decodeBatch(message):
+    requests = []
+    numRequests = unpack_from('>i', message, 0)[0]
+    pos = 4
+    for i in range(numRequests):
+        length = unpack_from('>i', message, pos)[0]
+        pos += 4
+        requests.append(bytes(message[pos:pos + length]))
+        pos += length
+    return requests
+
+stdbuffer = sys.stdin.buffer
+while True:
+    message = readBytes(stdbuffer)
+    if message == b'exit':
+        sys.exit(0)
+    responses = [request[::-1] for request in decodeBatch(message)]
+    batch = pack('>i', len(responses)) + b''.join(pack('>i', len(r)) + r for r in responses)
+    sys.stdout.buffer.write(pack('>i', len(batch)))
+    sys.stdout.buffer.write(batch)
+    sys.stdout.buffer.flush()
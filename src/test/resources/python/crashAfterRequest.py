@@ -0,0 +1,11 @@
+'''
+Writes a long error output after the first request and exits, like a program crashing with a stack trace.
+'''
+import sys
+
+print('Ready!')
+length = int.from_bytes(sys.stdin.buffer.read(4), 'big')
+sys.stdin.buffer.read(length)
+for i in range(2000):
+    sys.stderr.write('Traceback line %d\n' % i)
+sys.exit(1)
@@ -0,0 +1,25 @@
+'''
+Answers each request with the process ID of this program so that callers can tell when the external program has
+been replaced. A request "sleep <millis>" is answered after the given delay. Ends when the "exit" line is sent.
+'''
+import os
+import sys
+import time
+
+def decodeString(buffer):
+    lengthBuffer = bytearray(4)
+    buffer.readinto(lengthBuffer)
+    length = int.from_bytes(lengthBuffer, 'big')
+    content = bytearray(length)
+    buffer.readinto(content)
+    return content.decode("utf-8")
+
+stdbuffer = sys.stdin.buffer
+print("Ready!")
+while True:
+    line = decodeString(stdbuffer)
+    if line.strip() == "exit":
+        sys.exit(0)
+    if line.startswith("sleep "):
+        time.sleep(int(line.split()[1]) / 1000)
+    print(os.getpid())
@@ -0,0 +1,22 @@
+'''
+A program that pushes events on its own: for each request holding a number n, it prints n event lines.
+It ends when the "exit" line is sent.
+'''
+import sys
+
+
+def decodeString(buffer):
+    lengthBuffer = bytearray(4)
+    buffer.readinto(lengthBuffer)
+    length = int.from_bytes(lengthBuffer, 'big')
+    content = bytearray(length)
+    buffer.readinto(content)
+    return content.decode("utf-8")
+
+stdbuffer = sys.stdin.buffer
+while True:
+    line = decodeString(stdbuffer)
+    if line.strip() == "exit":
+        sys.exit(0)
+    for i in range(int(line)):
+        print("event " + str(i))
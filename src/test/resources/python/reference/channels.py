@@ -0,0 +1,16 @@
+'''
+A multiplexed worker built on the reference protocol module stdioipc. Channel 1 echoes its requests reversed,
+channel 2 echoes them in upper case and a request on channel 9 terminates the process.
+'''
+import os
+import sys
+
+sys.path.insert(0, os.path.join(os.path.dirname(__file__), '..', '..', '..', '..', 'main', 'resources', 'de', 'julielab', 'ipc', 'javabridge'))
+import stdioipc
+
+stdioipc.serve_channels({
+    1: lambda request: bytes(request)[::-1],
+    2: lambda request: bytes(request).upper(),
+    # Simulates a crash of the external program
+    9: lambda request: os._exit(1)
+}, ready_signal='Ready!')
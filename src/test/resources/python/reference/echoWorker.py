@@ -0,0 +1,17 @@
+'''
+A worker built on the reference protocol module stdioipc that echoes its requests as binary responses. With the
+argument "batch", it expects batch requests as sent by StdioBridge#sendAndReceiveBatched. With the argument "deflate",
+requests and responses are compressed as session deflate streams.
+'''
+import os
+import sys
+
+sys.path.insert(0, os.path.join(os.path.dirname(__file__), '..', '..', '..', '..', 'main', 'resources', 'de', 'julielab', 'ipc', 'javabridge'))
+import stdioipc
+
+if len(sys.argv) > 1 and sys.argv[1] == 'batch':
+    stdioipc.serve(lambda requests: requests, ready_signal='Ready!', batch=True)
+elif len(sys.argv) > 1 and sys.argv[1] == 'deflate':
+    stdioipc.serve(lambda request: request, ready_signal='Ready!', deflate_requests=True, deflate_responses=True)
+else:
+    stdioipc.serve(lambda request: request, ready_signal='Ready!')
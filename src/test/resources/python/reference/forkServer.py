@@ -0,0 +1,17 @@
+'''
+A worker built on the reference protocol module stdioipc that is forked from a fork server. It answers each request
+with the process ID of the fork server, the process ID of the worker and the request, separated by spaces. Each
+worker announces its process ID on the error stream it shares with the fork server.
+'''
+import os
+import sys
+
+sys.path.insert(0, os.path.join(os.path.dirname(__file__), '..', '..', '..', '..', 'main', 'resources', 'de', 'julielab', 'ipc', 'javabridge'))
+import stdioipc
+
+server_pid = os.getpid()
+stdioipc.fork_server(ready_signal='Ready!')
+prefix = ('%d %d ' % (server_pid, os.getpid())).encode('ascii')
+sys.stderr.write('Forked worker %d\n' % os.getpid())
+sys.stderr.flush()
+stdioipc.serve(lambda request: prefix + bytes(request), ready_signal='Ready!')
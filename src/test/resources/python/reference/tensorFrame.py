@@ -0,0 +1,26 @@
+'''
+A worker that answers each request with a tensor frame holding several fields of different types and shapes.
+'''
+import os
+import sys
+
+sys.path.insert(0, os.path.join(os.path.dirname(__file__), '..', '..', '..', '..', 'main', 'resources', 'de', 'julielab', 'ipc', 'javabridge'))
+import stdioipc
+
+def handle(request):
+    tokens = bytes(request).decode('utf-8').split()
+    return stdioipc.encode_tensor_frame({
+        'ids': ('i', (len(tokens),), list(range(len(tokens)))),
+        'offsets': ('q', (len(tokens), 2), [o for i in range(len(tokens)) for o in (i, i + 1)]),
+        'embeddings': ('d', (len(tokens), 3), [0.5 * i for i in range(3 * len(tokens))]),
+        'scores': ('f', (len(tokens),), [0.25] * len(tokens)),
+    })
+
+reader = stdioipc.FrameReader()
+writer = stdioipc.FrameWriter()
+stdioipc.send_ready_signal('Ready!', writer)
+for frame in reader:
+    if frame == b'exit':
+        break
+    writer.write_frames(handle(frame))
+    writer.flush()